@@ -1,29 +1,35 @@
 import java.nio.channels.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.io.IOException;
 
+/*
+ * Accepts new connections on acceptDispatcher and hands each one to one of the dispatchers,
+ * either round-robin or to the one with the fewest connections (DispatcherSelection LeastLoaded).
+ * A connection stays on its dispatcher until it is closed.
+ */
+
 public class Acceptor implements IAcceptHandler {
 
-	private Dispatcher dispatcher;
+	public static final String SELECTION_LEAST_LOADED = "LeastLoaded";
+
+	private Dispatcher acceptDispatcher;
+	private Dispatcher[] dispatchers;
+	private boolean leastLoaded;
+	private int nextDispatcher = 0;
 	private ServerSocketChannel server;
 	private ISocketReadWriteHandlerFactory srwf;
 	private SHTTPServer shttpServer;
-	
-	ScheduledExecutorService scheduledExecutorService;
 
 	public Acceptor(ServerSocketChannel server, 
-			Dispatcher d, 
+			Dispatcher acceptDispatcher,
+			Dispatcher[] dispatchers,
 			ISocketReadWriteHandlerFactory srwf,
 			SHTTPServer shttpServer) {
-		this.dispatcher = d;
+		this.acceptDispatcher = acceptDispatcher;
+		this.dispatchers = dispatchers;
 		this.server = server;
 		this.srwf = srwf;
 		this.shttpServer = shttpServer;
-		
-		scheduledExecutorService = Executors.newScheduledThreadPool(1);
+		leastLoaded = SELECTION_LEAST_LOADED.equalsIgnoreCase(shttpServer.getDispatcherSelection());
 	}
 
 	public void handleException() {
@@ -34,12 +40,33 @@ public class Acceptor implements IAcceptHandler {
 		// ServerSocketChannel server = (ServerSocketChannel ) key.channel();
 		// ASSERT: this.server == server
 
-		// extract the ready connection
-		SocketChannel client = server.accept();
-		Debug.DEBUG("handleAccept: Accepted connection from " + client);
+		// extract the ready connections
+		SocketChannel client;
+		while ((client = server.accept()) != null) {
+			Debug.DEBUG("handleAccept: Accepted connection from " + client);
+
+			// configure the connection to be non-blocking
+			client.configureBlocking(false);
 
-		// configure the connection to be non-blocking
-		client.configureBlocking(false);
+			assignConnection(client, nextDispatcher());
+		}
+	} // end of handleAccept
+
+	/* Returns the dispatcher to handle the next connection */
+	private Dispatcher nextDispatcher() {
+		if (leastLoaded) {
+			Dispatcher leastLoadedDispatcher = dispatchers[0];
+			for (int i = 1; i < dispatchers.length; i++) {
+				if (dispatchers[i].getLoad() < leastLoadedDispatcher.getLoad()) leastLoadedDispatcher = dispatchers[i];
+			}
+			return leastLoadedDispatcher;
+		}
+		Dispatcher dispatcher = dispatchers[nextDispatcher];
+		nextDispatcher = (nextDispatcher + 1) % dispatchers.length;
+		return dispatcher;
+	}
+
+	private void assignConnection(SocketChannel client, Dispatcher dispatcher) throws IOException {
 
 		/* register the new connection with *read* events/operations
 	   SelectionKey clientKey = 
@@ -47,18 +74,24 @@ public class Acceptor implements IAcceptHandler {
 	   selector, SelectionKey.OP_READ);// | SelectionKey.OP_WRITE);
 		 */
 
-		AsyncServerReadWriteHandler rwH = (AsyncServerReadWriteHandler) srwf.createHandler(dispatcher, client, shttpServer);
+		final AsyncServerReadWriteHandler rwH = (AsyncServerReadWriteHandler) srwf.createHandler(dispatcher, client, shttpServer);
 		int ops = rwH.getInitOps();
 
-		SelectionKey clientKey = dispatcher.registerNewSelection(client, rwH, ops);
-
-		// Start timeout scheduler in the scheduled executor service
-		TimeoutScheduler timeoutScheduler = new TimeoutScheduler(dispatcher, client);
-		ScheduledFuture<?> scheduledFuture = scheduledExecutorService.schedule(timeoutScheduler, AsyncServer.WAIT_TIMEOUT, TimeUnit.SECONDS);
-		rwH.setScheduledFuture(scheduledFuture);
-
-		// Dummy print to remove warnings of unused variable
-		Debug.DEBUG(clientKey.toString());
-	} // end of handleAccept
+		// A connection for another dispatcher is registered on that dispatcher's thread, which
+		// also owns the timing wheel for the incomplete-request timeout
+		if (dispatcher == acceptDispatcher) {
+			SelectionKey clientKey = dispatcher.registerNewSelection(client, rwH, ops);
+			rwH.startTimeout();
+			// Dummy print to remove warnings of unused variable
+			Debug.DEBUG(clientKey.toString());
+		} else {
+			dispatcher.registerNewSelectionLater(client, rwH, ops, new Runnable() {
+				@Override
+				public void run() {
+					rwH.startTimeout();
+				}
+			});
+		}
+	}
 
 } // end of class
\ No newline at end of file
@@ -5,7 +5,6 @@ import java.io.IOException;
 public class AsyncServer {
 
 	public static int DEFAULT_PORT = 6789;
-	public static int WAIT_TIMEOUT = 3;	// 3 s
 	
 	private static final String serverName = "AsyncServer";
 
@@ -36,19 +35,49 @@ public class AsyncServer {
 
 	public static void main(String[] args) {
 
-		// get dispatcher/selector
-		Dispatcher dispatcher = new Dispatcher();
-		
 		SHTTPServer shttpServer = new SHTTPServer(serverName, args);
+
+		// get dispatchers/selectors .. one per ThreadPoolSize, each serving its share of the connections
+		int numDispatchers = Math.max(1, shttpServer.getNumThreads());
+		Dispatcher[] dispatchers = new Dispatcher[numDispatchers];
+		for (int i = 0; i < numDispatchers; i++) {
+			dispatchers[i] = new Dispatcher();
+		}
+		// A single dispatcher accepts connections too; otherwise accepting gets a dispatcher of its own
+		Dispatcher dispatcher = (numDispatchers == 1) ? dispatchers[0] : new Dispatcher();
 		
 		// open server socket channel
 		int port = shttpServer.getServerPort();
 		ServerSocketChannel sch = openServerChannel(port);
 
+		// direct buffers shared by all connections
+		BufferPool bufferPool = new BufferPool(shttpServer.getBufferPoolSize());
+
+		// threads for the blocking part of serving requests (disk reads, CGI), so the dispatchers never wait
+		WorkerPool workerPool = null;
+		if (shttpServer.getWorkerPoolSize() > 0) {
+			workerPool = new WorkerPool(shttpServer.getWorkerPoolSize(), shttpServer.getWorkerQueueSize());
+		}
+
+		// every dispatcher and worker serves a request at a time
+		ServerLoad serverLoad = shttpServer.getServerLoad();
+		for (int i = 0; i < numDispatchers; i++) {
+			serverLoad.addDispatcher(dispatchers[i]);
+		}
+		serverLoad.setInFlightCapacity(numDispatchers + Math.max(0, shttpServer.getWorkerPoolSize()));
+
+		// queues and pools show up in /stats
+		ServerStats serverStats = shttpServer.getServerStats();
+		serverStats.addComponent("bufferPool", bufferPool);
+		if (workerPool != null) serverStats.addComponent("workerPool", workerPool);
+		for (int i = 0; i < numDispatchers; i++) {
+			serverStats.addComponent("dispatcherQueue-" + i, dispatchers[i].getDispatcherQueue());
+		}
+
 		// create server acceptor for AsyncServer ReadWrite Handler
 		ISocketReadWriteHandlerFactory echoFactory = 
-				new AsyncServerReadWriteHandlerFactory();
-		Acceptor acceptor = new Acceptor(sch, dispatcher, echoFactory, shttpServer);
+				new AsyncServerReadWriteHandlerFactory(bufferPool, workerPool);
+		Acceptor acceptor = new Acceptor(sch, dispatcher, dispatchers, echoFactory, shttpServer);
 
 		Thread dispatcherThread;
 		// register the server channel to a selector	
@@ -60,8 +89,12 @@ public class AsyncServer {
 			// Dummy print to remove warnings of unused variable
 			Debug.DEBUG(key.toString());
 			
-			// start dispatcher
-			dispatcherThread = new Thread(dispatcher);
+			// start dispatchers
+			for (int i = 0; i < numDispatchers; i++) {
+				if (dispatchers[i] == dispatcher) continue;
+				new Thread(dispatchers[i], "Dispatcher-" + i).start();
+			}
+			dispatcherThread = new Thread(dispatcher, (numDispatchers == 1) ? "Dispatcher-0" : "Acceptor");
 			dispatcherThread.start();
 		} catch (IOException ex) {
 			System.out.println("Cannot register and start server");
@@ -1,35 +1,59 @@
 import java.nio.*;
 import java.nio.channels.*;
-import java.util.concurrent.ScheduledFuture;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
+	// Both buffers are leased from the bufferPool only while in use; null otherwise
 	private ByteBuffer inBuffer;
 	private ByteBuffer outBuffer;
+	private BufferPool bufferPool;
+
+	// Body of a zero-copy response; sent with transferTo once the header in outBuffer is out
+	private FileChannel bodyChannel;
+	private long bodyPosition;
+	private long bodyRemaining;
+
+	// Body of a response served from the mapped cache; written together with the header
+	private ByteBuffer bodyBuffer;
 
 	private Dispatcher dispatcher;
 	private SocketChannel client;
 	private SHTTPServer shttpServer;
+	private WorkerPool workerPool;	// null = serve every request on the dispatcher
 
 	private boolean requestComplete;
 	private boolean responseReady;
 	private boolean responseSent;
 	private boolean channelClosed;
+	private boolean keepAlive;
+	private boolean endOfStream;
+
+	private HttpRequestParser parser;	// keeps its state across reads
+	private SHTTPRequest request;		// the complete request; null while it is being read
+	private long requestReadTime;		// System.nanoTime() when the request was read in full
+
+	// Statistics of the request being served; times from System.nanoTime()
+	private long parseTime;				// in ns, spent in the parser so far
+	private long serviceStart;
+	private long writeStart;
+	private String responseStatus;
+	private long responseLength;		// in bytes; -1 = not to be recorded (no valid request)
+	private int requestsServed;
+
+	// The one timeout running for the connection: the incomplete-request timeout (first request),
+	// the keep-alive timeout (later requests) or the write timeout (while a response is sent)
+	private TimingWheel.Timeout timeout;
 
-	private StringBuffer request;
-	
-	private ScheduledFuture<?> scheduledFuture;
-	
 	private static final int IN_BUFFER_SIZE = 1024;
-	private static final int OUT_BUFFER_SIZE = 2000000;
 
-	public AsyncServerReadWriteHandler(Dispatcher dispatcher, SocketChannel client, SHTTPServer shttpServer) {
-		inBuffer = ByteBuffer.allocate(IN_BUFFER_SIZE);
-		outBuffer = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+	public AsyncServerReadWriteHandler(Dispatcher dispatcher, SocketChannel client, SHTTPServer shttpServer,
+			BufferPool bufferPool, WorkerPool workerPool) {
+		inBuffer = null;
+		outBuffer = null;
+		this.bufferPool = bufferPool;
+		this.workerPool = workerPool;
 
 		this.dispatcher = dispatcher;
 		this.client = client;
@@ -40,8 +64,12 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 		responseReady = false;
 		responseSent = false;
 		channelClosed = false;
+		keepAlive = false;
+		endOfStream = false;
+		requestsServed = 0;
 
-		request = new StringBuffer(IN_BUFFER_SIZE);
+		parser = new HttpRequestParser();
+		request = null;
 	}
 
 	public int getInitOps() {
@@ -50,16 +78,17 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
 	public void handleException() {
 	}
-	
-	public void setScheduledFuture(ScheduledFuture<?> scheduledFuture) {
-		this.scheduledFuture = scheduledFuture;
+
+	/* Starts the incomplete-request timeout; called on the dispatcher thread once registered */
+	public void startTimeout() {
+		scheduleTimeout(shttpServer.getIncompletTimeout());
 	}
 
 	public void handleRead(SelectionKey key) throws IOException {
 
 		// Turn off the timer that is waiting for client's request
 		//scheduledFuture.cancel(true);
-		
+
 		// assert: t
 		// a connection is ready to be read
 		Debug.DEBUG("->handleRead");
@@ -82,21 +111,39 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
 		Debug.DEBUG("->Update dispatcher.");
 
-		if (channelClosed) 
+		if (channelClosed)
 			return;
 
-		// get registration key; as an optimization, may save it locally
-		SelectionKey sk = dispatcher.keyFor(client);
-
 		if (responseSent) {
-			Debug.DEBUG("***Response sent; connection closed");
-			outBuffer.clear();
-			dispatcher.deregisterSelection(sk);
-			client.close();
-			channelClosed = true;
-			return;
+			if (!keepAlive) {
+				Debug.DEBUG("***Response sent; connection closed");
+				closeChannel();
+				return;
+			}
+
+			// Persistent connection: get ready for the next request on this connection
+			Debug.DEBUG("***Response sent; connection kept alive");
+			resetRequestState();
+
+			// A pipelined request may already be waiting in the inBuffer
+			if (inBuffer != null) {
+				inBuffer.flip();
+				parseInBuffer();
+				inBuffer.compact();
+				releaseInBufferIfEmpty();
+			}
+
+			if (requestComplete) {
+				generateResponse();
+			} else {
+				// Close the connection if the next request doesn't arrive within keepAliveTimeout
+				scheduleTimeout(shttpServer.getKeepAliveTimeout());
+			}
 		}
 
+		// get registration key; as an optimization, may save it locally
+		SelectionKey sk = dispatcher.keyFor(client);
+
 		int nextState = 0; //sk.interestOps();
 		if (requestComplete) {
 			nextState = nextState & ~SelectionKey.OP_READ;
@@ -109,7 +156,7 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 		if (responseReady) {
 			nextState = SelectionKey.OP_WRITE;
 			Debug.DEBUG("New state: +Write since response ready but not done sent");
-		} 
+		}
 
 		dispatcher.updateInterests(sk, nextState);
 	}
@@ -119,14 +166,46 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
 		// process data
 		//SocketChannel client = (SocketChannel) key.channel();
-		Debug.DEBUG("handleWrite: Write data to connection " + client  
+		Debug.DEBUG("handleWrite: Write data to connection " + client
 				+ "; from buffer " + outBuffer);
-		
-		int writeBytes = client.write(outBuffer);
+
+		long writeBytes;
+		if (bodyBuffer != null) {
+			// gathering write of header and off-heap body without copying either
+			writeBytes = client.write(new ByteBuffer[] {outBuffer, bodyBuffer});
+			if (!bodyBuffer.hasRemaining()) bodyBuffer = null;
+		} else {
+			writeBytes = client.write(outBuffer);
+		}
 		Debug.DEBUG("handleWrite: after write " + outBuffer + " written bytes = " + writeBytes);
+		long progressBytes = writeBytes;
+
+		// Once the header is out, stream the file body straight from disk to the socket (sendfile)
+		if (bodyChannel != null && outBuffer.remaining() == 0) {
+			long transferredBytes = bodyChannel.transferTo(bodyPosition, bodyRemaining, client);
+			bodyPosition += transferredBytes;
+			bodyRemaining -= transferredBytes;
+			progressBytes += transferredBytes;
+			Debug.DEBUG("handleWrite: transferred " + transferredBytes + " bytes of body; remaining = " + bodyRemaining);
+
+			if (transferredBytes == 0 && bodyPosition >= bodyChannel.size()) {
+				// file shrank after the header was sent; the reply can't be completed
+				keepAlive = false;
+				bodyRemaining = 0;
+			}
+			if (bodyRemaining == 0) closeBodyChannel();
+		}
 
-		if ( responseReady && (outBuffer.remaining() == 0) )
+		if ( responseReady && (outBuffer.remaining() == 0) && bodyChannel == null && bodyBuffer == null ) {
 			responseSent = true;
+			cancelTimeout();
+			bufferPool.release(outBuffer);
+			outBuffer = null;
+			recordResponseStats();
+		} else if (progressBytes > 0) {
+			// a slow client is fine as long as it keeps reading
+			scheduleTimeout(shttpServer.getWriteTimeout());
+		}
 
 		// update state
 		updateDispatcher();
@@ -137,44 +216,42 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
 	private void processInBuffer() throws IOException {
 		Debug.DEBUG("processInBuffer");
+		if (inBuffer == null) inBuffer = bufferPool.lease(IN_BUFFER_SIZE);
 		int readBytes = client.read(inBuffer);
-		Debug.DEBUG("handleRead: Read data from connection " + client 
+		Debug.DEBUG("handleRead: Read data from connection " + client
 				+ " for " + readBytes
 				+ " byte(s); to buffer " + inBuffer);
 
 		if (readBytes == -1) { // end of stream
-			requestComplete = true;
 			Debug.DEBUG("handleRead: readBytes == -1");
+			endOfStream = true;
+			if (parser.getBufferedLength() == 0) {
+				// client closed an idle connection
+				closeChannel();
+				return;
+			}
+			// serve what was read if it has a request line at least
+			request = parser.finish();
+			if (request == null) {
+				closeChannel();
+				return;
+			}
+			requestComplete = true;
+			requestReadTime = System.nanoTime();
+			cancelTimeout();
 		} else {
 			inBuffer.flip(); // read input
-			//outBuffer = ByteBuffer.allocate( inBuffer.remaining() );
-			while ( !requestComplete
-					&& inBuffer.hasRemaining()
-					&& request.length() < request.capacity() ) {
-				char ch = (char) inBuffer.get();
-				Debug.DEBUG("Ch: " + ch);
-				request.append(ch);
-				// Search for a CRLF CRLF for end of request
-				if (ch == '\r') {
-					ch = (char) inBuffer.get();
-					request.append(ch);
-					if (ch == '\n') {
-						ch = (char) inBuffer.get();
-						request.append(ch);
-						if (ch == '\r') {
-							ch = (char) inBuffer.get();
-							if (ch == '\n') {
-								requestComplete = true;
-								scheduledFuture.cancel(true);
-							}
-						}
-					}
-					Debug.DEBUG("handleRead: find terminating chars");
-				} // end if
-			} // end of while
+			parseInBuffer();
+			// keep any bytes of a pipelined request that follows this one
+			inBuffer.compact();
+			releaseInBufferIfEmpty();
 		}
 
-		inBuffer.clear(); // we do not keep things in the inBuffer
+		if (parser.isError()) {
+			Debug.DEBUG("handleRead: request too large; connection closed");
+			closeChannel();
+			return;
+		}
 
 		if (requestComplete) {
 			generateResponse();
@@ -182,15 +259,202 @@ public class AsyncServerReadWriteHandler implements IReadWriteHandler {
 
 	} // end of process input
 
+	/* Feeds the bytes read to the parser; it stops at the end of the request head, leaving the
+	 * bytes of a pipelined request that follows in the inBuffer
+	 * ASSERT: inBuffer is in read mode (i.e. after flip)
+	 */
+	private void parseInBuffer() {
+		long parseStart = System.nanoTime();
+		request = parser.parse(inBuffer);
+		parseTime += System.nanoTime() - parseStart;
+		if (request != null) {
+			Debug.DEBUG("handleRead: request complete: " + request.getPath());
+			shttpServer.getServerStats().recordPhase(ServerStats.PHASE_PARSE, parseTime);
+			parseTime = 0;
+			requestComplete = true;
+			requestReadTime = System.nanoTime();
+			cancelTimeout();
+		}
+	}
+
+	/* Serves the complete request; anything that may block is handed to a worker, which posts
+	 * the response back to the dispatcher. Until then the connection is neither read nor written
+	 */
 	private void generateResponse() {
-		
-		BufferedReader inFromClient = 
-				new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request.toString().getBytes())));
-		byte[] response = shttpServer.serveRequest(inFromClient, client.socket().getInetAddress(), client.socket().getPort());
-		
-		if (response != null) outBuffer.put(response);
-		outBuffer.flip(); 
-		responseReady = true;
+
+		final SHTTPRequest requestToServe = request;
+		final long queuedSince = requestReadTime;
+		serviceStart = System.nanoTime();
+		requestsServed++;
+		shttpServer.getServerLoad().requestStarted();
+		final boolean keepAliveAllowed = !endOfStream && requestsServed < shttpServer.getMaxKeepAliveRequests();
+		SHTTPResponse response = serveRequest(requestToServe, keepAliveAllowed, workerPool == null);
+
+		if (response == SHTTPServer.DEFERRED) {
+			boolean submitted = workerPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					shttpServer.recordSojournTime(queuedSince);
+					SHTTPResponse response = null;
+					try {
+						response = serveRequest(requestToServe, keepAliveAllowed, true);
+					} catch (RuntimeException e) {
+						// Still hand a (null) response back: the connection is closed and its buffers
+						// released, rather than left waiting for a response that never comes
+						System.err.println("Exception in serving request " + requestToServe.getPath() + ": " + e);
+					} finally {
+						final SHTTPResponse workerResponse = response;
+						dispatcher.addToDispatcherQueue(new Runnable() {
+							@Override
+							public void run() {
+								responseGenerated(workerResponse);
+							}
+						});
+					}
+				}
+			});
+			if (submitted) return;
+
+			// Shed the request rather than block the dispatcher
+			response = shttpServer.createOverloadedResponse();
+			shttpServer.requestShed();
+		}
+		// Served on the dispatcher right after it was read: it never queued, so no sojourn time
+		// (a ~0 sample would pin QueueDelayMonitor's interval minimum however full the worker queue is)
+		shttpServer.getServerLoad().requestFinished();
+		setResponse(response);
 	} // end of generate response
 
+	private SHTTPResponse serveRequest(SHTTPRequest request, boolean keepAliveAllowed, boolean blockingAllowed) {
+		return shttpServer.serveRequest(request, client.socket().getInetAddress(),
+				client.socket().getPort(), keepAliveAllowed, true, blockingAllowed);
+	}
+
+	/* Called on the dispatcher thread with the response generated by a worker */
+	private void responseGenerated(SHTTPResponse response) {
+		shttpServer.getServerLoad().requestFinished();
+		try {
+			if (channelClosed) return;
+			if (!client.isOpen()) {
+				closeChannel();
+				return;
+			}
+			setResponse(response);
+			updateDispatcher();
+		} catch (IOException e) {
+			Debug.DEBUG("Exception when sending response to " + client);
+			try {
+				closeChannel();
+			} catch (IOException cex) {}
+		}
+	}
+
+	private void setResponse(SHTTPResponse response) {
+
+		writeStart = System.nanoTime();
+		responseStatus = (response != null) ? response.getStatusCode() : null;
+		responseLength = (response != null) ? response.getLength() : -1;
+
+		if (response != null) {
+			byte[] message = response.getMessage();
+			if (response.isPrerendered()) {
+				// write the shared reply itself rather than a copy (not pooled; release() ignores heap buffers)
+				outBuffer = ByteBuffer.wrap(message);
+				outBuffer.position(message.length);
+			} else {
+				outBuffer = bufferPool.lease(message.length);
+				outBuffer.put(message);
+			}
+			keepAlive = response.isKeepAlive();
+			if (response.getBodyFile() != null) openBodyChannel(response);
+			bodyBuffer = response.getBodyBuffer();
+		} else {
+			outBuffer = bufferPool.lease(0);
+			keepAlive = false;
+		}
+		outBuffer.flip();
+		responseReady = true;
+		scheduleTimeout(shttpServer.getWriteTimeout());
+	}
+
+	private void openBodyChannel(SHTTPResponse response) {
+		try {
+			bodyChannel = new FileInputStream(response.getBodyFile()).getChannel();
+			bodyPosition = response.getBodyPosition();
+			bodyRemaining = response.getBodyLength();
+		} catch (IOException e) {
+			// header has been generated already; close the connection after sending it
+			System.err.println("IOException in opening file for zero-copy reply: " + e.getMessage());
+			bodyChannel = null;
+			keepAlive = false;
+		}
+	}
+
+	private void closeBodyChannel() {
+		try {
+			if (bodyChannel != null) bodyChannel.close();
+		} catch (IOException e) {}
+		bodyChannel = null;
+	}
+
+	private void recordResponseStats() {
+		if (responseLength < 0) return;
+		long now = System.nanoTime();
+		ServerStats serverStats = shttpServer.getServerStats();
+		serverStats.recordPhase(ServerStats.PHASE_WRITE, now - writeStart);
+		serverStats.recordResponse(responseStatus, now - serviceStart, responseLength);
+	}
+
+	private void resetRequestState() {
+		requestComplete = false;
+		responseReady = false;
+		responseSent = false;
+		request = null;
+	}
+
+	/* Closes the connection unless the timeout is cancelled or rescheduled within delay ms */
+	private void scheduleTimeout(int delay) {
+		cancelTimeout();
+		if (delay <= 0) return;
+		timeout = dispatcher.scheduleTimeout(new Runnable() {
+			@Override
+			public void run() {
+				Debug.DEBUG("Timeout; connection closed " + client);
+				timeout = null;
+				try {
+					closeChannel();
+				} catch (IOException e) {}
+			}
+		}, delay);
+	}
+
+	private void cancelTimeout() {
+		if (timeout != null) timeout.cancel();
+		timeout = null;
+	}
+
+	/* Gives the inBuffer back to the pool unless it holds bytes of a pipelined request
+	 * ASSERT: inBuffer is in write mode (i.e. after compact)
+	 */
+	private void releaseInBufferIfEmpty() {
+		if (inBuffer != null && inBuffer.position() == 0) {
+			bufferPool.release(inBuffer);
+			inBuffer = null;
+		}
+	}
+
+	private void closeChannel() throws IOException {
+		cancelTimeout();
+		bufferPool.release(inBuffer);
+		bufferPool.release(outBuffer);
+		inBuffer = null;
+		outBuffer = null;
+		bodyBuffer = null;
+		closeBodyChannel();
+		SelectionKey sk = dispatcher.keyFor(client);
+		if (sk != null) dispatcher.deregisterSelection(sk);
+		client.close();
+		channelClosed = true;
+	}
+
 }
\ No newline at end of file
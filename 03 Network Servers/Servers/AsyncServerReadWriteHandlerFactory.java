@@ -2,7 +2,16 @@ import java.nio.channels.SocketChannel;
 
 public class AsyncServerReadWriteHandlerFactory 
 implements ISocketReadWriteHandlerFactory {
+
+	private BufferPool bufferPool;
+	private WorkerPool workerPool;
+
+	public AsyncServerReadWriteHandlerFactory(BufferPool bufferPool, WorkerPool workerPool) {
+		this.bufferPool = bufferPool;
+		this.workerPool = workerPool;
+	}
+
 	public IReadWriteHandler createHandler(Dispatcher d, SocketChannel client, SHTTPServer shttpServer) {
-		return new AsyncServerReadWriteHandler(d, client, shttpServer);
+		return new AsyncServerReadWriteHandler(d, client, shttpServer, bufferPool, workerPool);
 	}
 }
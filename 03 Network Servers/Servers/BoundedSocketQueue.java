@@ -0,0 +1,216 @@
+import java.net.Socket;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded FIFO queue of accepted connections shared by the acceptor and the worker threads of the
+ * shared-queue servers. Connections are kept in a ring buffer, so adding and removing are O(1),
+ * and each add or remove signals one waiting thread rather than waking all of them.
+ * When the queue is full the acceptor either gets false from offer() (and can reject the
+ * connection) or waits in put() until a worker takes one.
+ * Also records the depth of the queue, how long connections waited and how many were rejected;
+ * the time each connection waited is also passed to the sojournTimeListener, if there is one.
+ */
+
+public class BoundedSocketQueue {
+
+	public static final String OVERFLOW_REJECT = "Reject";
+	public static final String OVERFLOW_BLOCK = "Block";
+
+	private Socket[] sockets;
+	private long[] enqueueTimes;	// in ns, of the socket at the same index
+	private int head;		// index of the oldest socket
+	private int count;
+
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+
+	private SojournTimeListener sojournTimeListener;	// null = none
+
+	// Statistics
+	private int maxDepth;
+	private long enqueued;
+	private long dequeued;
+	private long rejected;
+	private long blockedPuts;	// # of puts that had to wait for room
+	private long totalWait;		// in ns, summed over all dequeued sockets
+	private long maxWait;		// in ns
+
+	public BoundedSocketQueue(int capacity) {
+		this(capacity, null);
+	}
+
+	public BoundedSocketQueue(int capacity, SojournTimeListener sojournTimeListener) {
+		if (capacity <= 0) throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+		sockets = new Socket[capacity];
+		enqueueTimes = new long[capacity];
+		head = 0;
+		count = 0;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+		this.sojournTimeListener = sojournTimeListener;
+	}
+
+	/* Adds the socket unless the queue is full
+	 * Returns false (and counts a rejection) if it is
+	 */
+	public boolean offer(Socket socket) {
+		lock.lock();
+		try {
+			if (count == sockets.length) {
+				rejected++;
+				return false;
+			}
+			enqueue(socket);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Adds the socket, waiting for room if the queue is full */
+	public void put(Socket socket) throws InterruptedException {
+		lock.lock();
+		try {
+			if (count == sockets.length) {
+				blockedPuts++;
+				while (count == sockets.length) notFull.await();
+			}
+			enqueue(socket);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Removes the oldest socket, waiting for one if the queue is empty */
+	public Socket take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (count == 0) notEmpty.await();
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Removes the oldest socket without waiting
+	 * Returns null if the queue is empty
+	 */
+	public Socket poll() {
+		lock.lock();
+		try {
+			return (count == 0) ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* ASSERT: lock is held and the queue is not full */
+	private void enqueue(Socket socket) {
+		int tail = (head + count) % sockets.length;
+		sockets[tail] = socket;
+		enqueueTimes[tail] = System.nanoTime();
+		count++;
+		enqueued++;
+		if (count > maxDepth) maxDepth = count;
+		notEmpty.signal();
+	}
+
+	/* ASSERT: lock is held and the queue is not empty */
+	private Socket dequeue() {
+		Socket socket = sockets[head];
+		long waited = System.nanoTime() - enqueueTimes[head];
+		sockets[head] = null;
+		head = (head + 1) % sockets.length;
+		count--;
+		dequeued++;
+		totalWait += waited;
+		if (waited > maxWait) maxWait = waited;
+		if (sojournTimeListener != null) sojournTimeListener.requestStarted(waited);
+		notFull.signal();
+		return socket;
+	}
+
+	public int getCapacity() {
+		return sockets.length;
+	}
+
+	public int getDepth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEnqueued() {
+		lock.lock();
+		try {
+			return enqueued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejected() {
+		lock.lock();
+		try {
+			return rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBlockedPuts() {
+		lock.lock();
+		try {
+			return blockedPuts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Average time a connection waited in the queue, in ns */
+	public long getAverageWait() {
+		lock.lock();
+		try {
+			return (dequeued == 0) ? 0 : totalWait / dequeued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxWait() {
+		lock.lock();
+		try {
+			return maxWait;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "BoundedSocketQueue[capacity=" + sockets.length + ", depth=" + count + ", maxDepth=" + maxDepth
+					+ ", enqueued=" + enqueued + ", rejected=" + rejected + ", blockedPuts=" + blockedPuts
+					+ ", avgWait=" + ((dequeued == 0) ? 0 : totalWait / dequeued) / 1000 + " us, maxWait="
+					+ maxWait / 1000 + " us]";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
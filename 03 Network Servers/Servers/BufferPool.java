@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A pool of direct ByteBuffers in a few fixed size classes, shared by all connections
+ * of the AsyncServer. Buffers are leased when a connection needs them and released
+ * when it is done with them, so idle connections hold no buffer memory.
+ * The total memory of all the direct buffers ever allocated is capped at maxPoolSize;
+ * once it is reached a lease that misses the free lists falls back to a heap buffer.
+ */
+
+public class BufferPool {
+
+	private static final int[] SIZE_CLASSES = {1024, 4096, 16384, 65536, 262144, 1048576};
+
+	private long maxPoolSize;		// in bytes
+	private AtomicLong allocatedSize;	// bytes of direct buffers allocated so far
+	private ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+
+	// Statistics
+	private AtomicLong hits;		// lease served from a free list
+	private AtomicLong misses;		// lease served by allocating a new direct buffer
+	private AtomicLong exhaustions;	// lease served from the heap since the pool is full or the size is too large
+
+	@SuppressWarnings({"unchecked", "rawtypes"})	// no generic array creation
+	public BufferPool(long maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+		allocatedSize = new AtomicLong(0);
+		freeLists = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+
+		hits = new AtomicLong(0);
+		misses = new AtomicLong(0);
+		exhaustions = new AtomicLong(0);
+	}
+
+	/* Returns a cleared buffer with a capacity of at least size bytes */
+	public ByteBuffer lease(int size) {
+
+		int sizeClass = getSizeClass(size);
+		if (sizeClass < 0) {
+			exhaustions.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		ByteBuffer buffer = freeLists[sizeClass].poll();
+		if (buffer != null) {
+			hits.incrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+
+		// Reserve room in the budget before allocating a new direct buffer
+		int classSize = SIZE_CLASSES[sizeClass];
+		long newAllocatedSize = allocatedSize.addAndGet(classSize);
+		if (newAllocatedSize > maxPoolSize) {
+			allocatedSize.addAndGet(-classSize);
+			exhaustions.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		misses.incrementAndGet();
+		return ByteBuffer.allocateDirect(classSize);
+	}
+
+	/* Returns a buffer obtained from lease() to the pool .. heap buffers are left for the GC */
+	public void release(ByteBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect()) return;
+		int sizeClass = getSizeClass(buffer.capacity());
+		if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity()) return;
+		buffer.clear();
+		freeLists[sizeClass].offer(buffer);
+	}
+
+	public long getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public long getAllocatedSize() {
+		return allocatedSize.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getExhaustions() {
+		return exhaustions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[allocated=" + allocatedSize.get() + "/" + maxPoolSize + " bytes, hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", exhaustions=" + exhaustions.get() + "]";
+	}
+
+	/* Returns the index of the smallest size class that can hold size bytes, or -1 if none can */
+	private int getSizeClass(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * The part of a body asked for by a "Range: bytes=<first>-<last>" request header (also
+ * "bytes=<first>-" for the rest of the body and "bytes=-<n>" for its last n bytes), resolved
+ * against the length of the body.
+ * Only a single range is supported: for several ranges, other units or bad syntax parse returns
+ * null and the whole body is sent, which a server is allowed to do. A range that starts past the
+ * end of the body is unsatisfiable (416).
+ */
+
+public class ByteRange {
+
+	private static final String BYTES_UNIT = "bytes=";
+	private static final int MAX_DIGITS = 18;	// so the value fits in a long
+
+	private final long first;		// inclusive; -1 = unsatisfiable
+	private final long last;		// inclusive
+	private final long totalLength;
+
+	private ByteRange(long first, long last, long totalLength) {
+		this.first = first;
+		this.last = last;
+		this.totalLength = totalLength;
+	}
+
+	/* Returns the range asked for by value (of a Range header) in a body of totalLength bytes,
+	 * or null if the header is to be ignored
+	 */
+	public static ByteRange parse(String value, long totalLength) {
+
+		value = value.trim();
+		if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) return null;
+		String spec = value.substring(BYTES_UNIT.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) return null;
+		long first = parseDigits(spec.substring(0, dash).trim());
+		long last = parseDigits(spec.substring(dash + 1).trim());
+		if (first == -2 || last == -2) return null;
+
+		// Suffix range: the last bytes of the body
+		if (first == -1) {
+			if (last == -1) return null;
+			if (last == 0 || totalLength == 0) return unsatisfiable(totalLength);
+			return new ByteRange(Math.max(0, totalLength - last), totalLength - 1, totalLength);
+		}
+
+		if (last != -1 && last < first) return null;
+		if (first >= totalLength) return unsatisfiable(totalLength);
+		if (last == -1 || last >= totalLength) last = totalLength - 1;
+		return new ByteRange(first, last, totalLength);
+	}
+
+	private static ByteRange unsatisfiable(long totalLength) {
+		return new ByteRange(-1, -1, totalLength);
+	}
+
+	/* Returns the value of digits, -1 if there are none or -2 if they are no (valid) number */
+	private static long parseDigits(String digits) {
+		if (digits.isEmpty()) return -1;
+		if (digits.length() > MAX_DIGITS) return -2;
+		long value = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char c = digits.charAt(i);
+			if (c < '0' || c > '9') return -2;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	public boolean isSatisfiable() {
+		return first >= 0;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	/* Returns the # of bytes in the range */
+	public long getLength() {
+		return isSatisfiable() ? last - first + 1 : 0;
+	}
+
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	@Override
+	public String toString() {
+		return "bytes " + (isSatisfiable() ? first + "-" + last : "*") + "/" + totalLength;
+	}
+}
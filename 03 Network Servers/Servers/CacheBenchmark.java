@@ -0,0 +1,144 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Replays a request list (e.g. requests or extras/requestFiles) against a FileCache, once
+ * without and once with the TinyLFU admission filter, and reports hit ratio and throughput.
+ * The list is replayed -rounds times, shuffled with a fixed seed each round, so both runs
+ * see exactly the same sequence of requests.
+ * Files are read from disk once up front so that only the cache itself is measured.
+ *
+ * usage: java CacheBenchmark -files <request file> -size <cache size in KB>
+ *            [-root <document root>] [-policy <CachePolicy class>] [-rounds <# of rounds>]
+ */
+
+public class CacheBenchmark {
+
+	private static final String FILES_ARG = "-files";
+	private static final String SIZE_ARG = "-size";
+	private static final String ROOT_ARG = "-root";
+	private static final String POLICY_ARG = "-policy";
+	private static final String ROUNDS_ARG = "-rounds";
+
+	private static final long SEED = 433;
+
+	public static void main(String[] args) {
+
+		HashMap<String, String> argsMap = parseArgs(args);
+		if (argsMap.get(FILES_ARG) == null || argsMap.get(SIZE_ARG) == null) {
+			System.err.println("Usage: -files <request file> -size <cache size in KB> "
+					+ "[-root <document root>] [-policy <CachePolicy class>] [-rounds <# of rounds>]");
+			return;
+		}
+
+		String documentRoot = (argsMap.get(ROOT_ARG) != null) ? argsMap.get(ROOT_ARG) : ".";
+		String policyName = (argsMap.get(POLICY_ARG) != null) ? argsMap.get(POLICY_ARG) : "LRUCachePolicy";
+		int rounds = (argsMap.get(ROUNDS_ARG) != null) ? Integer.parseInt(argsMap.get(ROUNDS_ARG)) : 100;
+		long cacheSize = Long.parseLong(argsMap.get(SIZE_ARG)) * 1024;
+
+		ArrayList<String> requests = new ArrayList<String>();
+		HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+		try {
+			loadRequests(argsMap.get(FILES_ARG), documentRoot, requests, files);
+		} catch (IOException e) {
+			System.err.println("IOException in loading requests: " + e.getMessage());
+			return;
+		}
+		if (requests.isEmpty()) {
+			System.err.println("None of the requested files were found under " + documentRoot);
+			return;
+		}
+
+		System.out.println("========== Cache benchmark: " + policyName + ", " + (cacheSize / 1024) + " KB, "
+				+ requests.size() + " requests x " + rounds + " rounds ==========");
+		try {
+			runBenchmark(requests, files, cacheSize, (CachePolicy) Class.forName(policyName).getDeclaredConstructor().newInstance(), null, rounds);
+			runBenchmark(requests, files, cacheSize, (CachePolicy) Class.forName(policyName).getDeclaredConstructor().newInstance(),
+					FrequencySketch.forCacheSize(cacheSize), rounds);
+		} catch (Exception e) {
+			System.err.println("Error in load CachePolicy class: " + policyName + ": " + e.getMessage());
+		}
+	}
+
+	private static void runBenchmark(ArrayList<String> requests, HashMap<String, byte[]> files, long cacheSize,
+			CachePolicy policy, FrequencySketch admissionSketch, int rounds) {
+
+		FileCache cache = new FileCache(cacheSize, policy, admissionSketch);
+		ArrayList<String> sequence = new ArrayList<String>(requests);
+		Random random = new Random(SEED);
+
+		long totalRequests = 0;
+		long bytesRequested = 0;
+		long bytesHit = 0;
+		long startTime = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			Collections.shuffle(sequence, random);
+			for (int i = 0; i < sequence.size(); i++) {
+				String path = sequence.get(i);
+				byte[] file = files.get(path);
+				if (cache.get(path) != null) {
+					bytesHit += file.length;
+				} else {
+					cache.put(path, file);
+				}
+				bytesRequested += file.length;
+				totalRequests++;
+			}
+		}
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.println();
+		System.out.println("TinyLFU admission: " + ((admissionSketch != null) ? "on" : "off"));
+		System.out.println("Hit ratio: " + cache.getHitRatio());
+		System.out.println("Byte hit ratio: " + ((double) bytesHit) / bytesRequested);
+		System.out.println("Evictions: " + cache.getEvictions() + ", rejected admissions: " + cache.getRejections());
+		System.out.println("Throughput (#requests per second): " + (long) (totalRequests / elapsedSeconds));
+	}
+
+	/* Reads the request file; every request whose file exists under documentRoot is added to
+	 * requests, and the contents of each distinct file to files
+	 */
+	private static void loadRequests(String fileName, String documentRoot, ArrayList<String> requests,
+			HashMap<String, byte[]> files) throws IOException {
+
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.isEmpty()) continue;
+			String path = documentRoot + line;
+			if (!files.containsKey(path)) {
+				File file = new File(path);
+				if (!file.isFile()) continue;
+				byte[] contents = new byte[(int) file.length()];
+				FileInputStream in = new FileInputStream(file);
+				int offset = 0;
+				int readBytes;
+				while (offset < contents.length && (readBytes = in.read(contents, offset, contents.length - offset)) != -1) {
+					offset += readBytes;
+				}
+				in.close();
+				files.put(path, contents);
+			}
+			requests.add(path);
+		}
+		br.close();
+	}
+
+	/* Takes in args from terminal and returns a HashMap of < arg name , arg value >
+	 */
+	private static HashMap<String, String> parseArgs(String[] args) {
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			argsMap.put(args[i], args[i+1]);
+		}
+		return argsMap;
+	}
+}
@@ -0,0 +1,16 @@
+import java.util.Iterator;
+
+/*
+ * Eviction policy plugin for FileCache (set with "CachePolicy <class name>" in the config)
+ * FileCache calls these methods while holding its lock, so implementations need not be thread safe
+ */
+
+public interface CachePolicy {
+	public void recordInsert(String key);
+	public void recordAccess(String key);
+	public void recordRemoval(String key);
+	public String selectVictim();
+
+	// All keys in the order they would be evicted, selectVictim first; only read until the next record call
+	public Iterator<String> victims();
+}
@@ -0,0 +1,8 @@
+/*
+ * Notified by FileCache whenever an entry is removed from it (evicted or replaced),
+ * so that anything derived from the cached file can be dropped too
+ */
+
+public interface CacheRemovalListener {
+	public void entryRemoved(String key);
+}
@@ -1,12 +1,10 @@
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /* Class that extends TimerTask for running a client thread that executes requests till stopTime specified
 	 ====================================================================================================================*/
@@ -14,23 +12,28 @@ import java.util.HashMap;
 public class ClientRequestThread extends Thread {
 
 	public static final int CLIENT_TIMEOUT = 3000;		// 3 s
+	private static final int READ_BUFFER_SIZE = 8192;
 
 	private ArrayList<String> filesToRequest;
 	private InetAddress serverAddress;
 	private int serverPort;
+	private String acceptEncoding;		// sent as Accept-Encoding; null = none
 
-	// Local thread statistics
-	private static long threadTransactions = 0;
-	private static long threadBytesReceived = 0;
-	private static long threadWaitTime = 0;
+	private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+	// Local thread statistics (only this thread updates them; they are handed to SHTTPTestClient once at the end)
+	private long threadTransactions = 0;
+	private long threadBytesReceived = 0;
+	private long threadWaitTime = 0;
 
 	public ClientRequestThread(ArrayList<String> filesToRequest, 
-			InetAddress serverAddress, int serverPort) {
+			InetAddress serverAddress, int serverPort, String acceptEncoding) {
 
 		//this.stopTime = stopTime;
 		this.filesToRequest = filesToRequest;
 		this.serverAddress = serverAddress;
 		this.serverPort = serverPort;
+		this.acceptEncoding = acceptEncoding;
 	}
 
 	@Override
@@ -71,37 +74,32 @@ public class ClientRequestThread extends Thread {
 				return;
 			}
 
-			// create read stream and receive from server
-			BufferedReader inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));	
+			// Read the whole reply (the server closes the connection after an HTTP/1.0 reply),
+			// counting the bytes off the socket
+			InputStream inFromServer = clientSocket.getInputStream();
+			long numBytesReceived = 0;
+			String statusLine = null;
+			int bytesRead;
+			while ((bytesRead = inFromServer.read(readBuffer)) != -1) {
+				if (statusLine == null) statusLine = getStatusLine(readBuffer, bytesRead);
+				numBytesReceived += bytesRead;
+			}
+			long replyReceiveTime = System.currentTimeMillis();
 
-			// Validate reply form server				
-			String statusLine = inFromServer.readLine();
+			// Validate reply form server
 			if(!isServerReplyValid(statusLine)) {
 				System.err.println("Invalid message from server.");
 				clientSocket.close();
 				return;
 			}
 
-			HashMap<String, String> receivedMessage = readInReceivedMessage(inFromServer);
-
-			String dateLine = receivedMessage.get("Date");
-			String serverLine = receivedMessage.get("Server");
-			String contentTypeLine = receivedMessage.get("Content-Type");
-			String contentLengthLine = receivedMessage.get("Content-Length");
-			int headerNumBytes = statusLine.length() + dateLine.length() + serverLine.length() +
-					contentTypeLine.length() + contentLengthLine.length();
-			long replyReceiveTime = System.currentTimeMillis();
-
 			// 1) Record transaction as complete
 			threadTransactions++;
 
 			// 2) Get round trip time of request
-			int roundTripTime = (int) (replyReceiveTime - requestSendTime);
-			threadWaitTime += roundTripTime;
+			threadWaitTime += replyReceiveTime - requestSendTime;
 
 			// 3) Record number of bytes received
-			int numBytesInReplyFile = getNumBytesInReplyFile(inFromServer);
-			int numBytesReceived = headerNumBytes + numBytesInReplyFile;
 			threadBytesReceived += numBytesReceived;
 
 			clientSocket.close();
@@ -113,6 +111,7 @@ public class ClientRequestThread extends Thread {
 
 	/* Creates a new GET request message to with the URL string provided
 	 * Format : GET <URL> HTTP/1.0
+	 * 			[Accept-Encoding: <acceptEncoding>]
 	 * 			CRLF
 	 */
 	private byte[] createRequestMessage(String url) {
@@ -129,6 +128,10 @@ public class ClientRequestThread extends Thread {
 			byteBuffer.write((byte) ' ');
 			byteBuffer.write(http.getBytes());
 			byteBuffer.write(crlf.getBytes());
+			if (acceptEncoding != null) {
+				byteBuffer.write(("Accept-Encoding: " + acceptEncoding).getBytes());
+				byteBuffer.write(crlf.getBytes());
+			}
 			byteBuffer.write(crlf.getBytes());
 		} catch (Exception e) {
 			System.err.println("Error in creating request message: " + e.getMessage());
@@ -148,41 +151,12 @@ public class ClientRequestThread extends Thread {
 		return true;
 	}
 
-	private HashMap<String, String> readInReceivedMessage(BufferedReader inFromServer) {
-		/*  HTTP/1.0 <StatusCode> <message>  ... This was already read! Starts from next line
-			Date: <date>
-			Server: <your server name>
-			Content-Type: text/html
-			Content-Length: <LengthOfFile>
-			CRLF
-			<file content>
-		 */
-		HashMap<String, String> messageMap = new HashMap<String, String>();		
-		try {
-			String line = inFromServer.readLine();
-			while (line != null && !line.equals("")) {
-				String[] splitMessageField = line.split(": ");
-				if (splitMessageField.length == 2) {
-					messageMap.put(splitMessageField[0], splitMessageField[1]);
-				}
-				line = inFromServer.readLine();
-			}
-		} catch (IOException e) {
-			System.err.println("IOException in reading reply message: " + e.getMessage());
-		}
-
-		return messageMap;		
-	}
-
-	private int getNumBytesInReplyFile(BufferedReader inFromServer) throws IOException {
+	/* Returns the first line of a reply, from its first read */
+	private String getStatusLine(byte[] buffer, int length) {
 
-		int fileLength = 0;
-		while(inFromServer.ready()) {
-			String line = inFromServer.readLine();
-			//System.out.println(line);
-			fileLength += line.length();
-		}
-		return fileLength;
+		int lineEnd = 0;
+		while (lineEnd < length && buffer[lineEnd] != '\r' && buffer[lineEnd] != '\n') lineEnd++;
+		return new String(buffer, 0, lineEnd);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A plugin for LoadBalancer and LoadReporter that scores load from what actually takes the
+ * servers down: requests piling up, stalled dispatchers and GC storms, with the file cache hit
+ * ratio as a hint of how expensive requests currently are.
+ * Each figure is scaled so that 1 means "at the limit" and the score is their weighted sum:
+ *	in flight / capacity, dispatcher lag / 100 ms, GC time fraction / 10 %, cache miss ratio
+ * The system is overloaded when the score is above 1.
+ */
+
+public class CompositeLoadMonitor implements LoadBalancer, LoadReporter {
+
+	private static final double IN_FLIGHT_WEIGHT = 0.4;
+	private static final double LAG_WEIGHT = 0.3;
+	private static final double GC_WEIGHT = 0.2;
+	private static final double CACHE_MISS_WEIGHT = 0.1;
+
+	private static final double MAX_LAG = 100 * 1e6;		// 100 ms, in ns
+	private static final double MAX_GC_FRACTION = 0.1;		// 10 % of the time spent in GC
+	private static final long GC_SAMPLE_INTERVAL = 1000;	// in ms
+
+	private ServerLoad serverLoad;
+	private List<GarbageCollectorMXBean> gcBeans;
+
+	// GC time fraction over the last sample interval
+	// A ReentrantLock rather than the monitor, so sampling doesn't pin the carrier of a virtual thread
+	private final ReentrantLock sampleLock = new ReentrantLock();
+	private volatile long lastSampleTime;	// in ms
+	private long lastGcTime;		// in ms, summed over all collectors
+	private volatile double gcFraction;
+
+	public CompositeLoadMonitor() {
+		gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+		lastSampleTime = System.currentTimeMillis();
+		lastGcTime = getTotalGcTime();
+		gcFraction = 0.0;
+	}
+
+	public void setServerLoad(ServerLoad serverLoad) {
+		this.serverLoad = serverLoad;
+	}
+
+	public boolean isSystemOverloaded() {
+		return getLoadScore() > 1.0;
+	}
+
+	public double getLoadScore() {
+		if (serverLoad == null) return 0.0;
+		return IN_FLIGHT_WEIGHT * getInFlightLoad() + LAG_WEIGHT * getLagLoad()
+				+ GC_WEIGHT * getGcLoad() + CACHE_MISS_WEIGHT * getCacheMissLoad();
+	}
+
+	public String getLoadReport(double loadScore) {
+		if (serverLoad == null) return String.format(Locale.US, "%.4f\n", loadScore);
+		return String.format(Locale.US, "%.4f\ninFlight %d/%d\ndispatcherLag %.3f ms\ngcFraction %.4f\ncacheHitRatio %.4f\n",
+				loadScore, serverLoad.getInFlight(), serverLoad.getInFlightCapacity(),
+				serverLoad.getDispatcherLag() / 1e6, getGcFraction(), serverLoad.getCacheHitRatio());
+	}
+
+	private double getInFlightLoad() {
+		return ((double) serverLoad.getInFlight()) / serverLoad.getInFlightCapacity();
+	}
+
+	private double getLagLoad() {
+		return serverLoad.getDispatcherLag() / MAX_LAG;
+	}
+
+	private double getGcLoad() {
+		return getGcFraction() / MAX_GC_FRACTION;
+	}
+
+	private double getCacheMissLoad() {
+		return 1.0 - serverLoad.getCacheHitRatio();
+	}
+
+	/* Fraction of wall time spent in GC over the last sample interval
+	 * While another thread takes a new sample, the last one is returned
+	 */
+	private double getGcFraction() {
+		long now = System.currentTimeMillis();
+		if (now - lastSampleTime >= GC_SAMPLE_INTERVAL && sampleLock.tryLock()) {
+			try {
+				if (now - lastSampleTime >= GC_SAMPLE_INTERVAL) {
+					long gcTime = getTotalGcTime();
+					gcFraction = Math.min(1.0, ((double) (gcTime - lastGcTime)) / (now - lastSampleTime));
+					lastGcTime = gcTime;
+					lastSampleTime = now;
+				}
+			} finally {
+				sampleLock.unlock();
+			}
+		}
+		return gcFraction;
+	}
+
+	private long getTotalGcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gcBean : gcBeans) {
+			long time = gcBean.getCollectionTime();
+			if (time > 0) total += time;	// -1 if not supported by the collector
+		}
+		return total;
+	}
+}
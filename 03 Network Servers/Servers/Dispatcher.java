@@ -1,17 +1,35 @@
 import java.nio.channels.*;
 import java.io.IOException;
 import java.util.*; // for Set and Iterator
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Dispatcher implements Runnable {
 
+	private static final long TIMEOUT_TICK = 100;		// in ms; resolution of connection timeouts
+	private static final int TIMEOUT_SLOTS = 512;
+
 	private Selector selector;
-	private ArrayList<Runnable> pendingInvocations;
+	private TaskQueue pendingInvocations;
+	private Thread dispatcherThread;
+	private TimingWheel timingWheel;	// connection timeouts; only used on the dispatcher thread
+
+	// Load of this dispatcher, read by the acceptor to shard connections among dispatchers
+	private volatile int registeredChannels = 0;	// as of the last select
+	private AtomicInteger pendingRegistrations = new AtomicInteger();
+
+	// Lag of the select loop: how long a ready event may wait for the dispatcher to get to it
+	private volatile long busySince = 0;		// in ns; 0 while waiting in select
+	private volatile long averageBusyTime = 0;	// in ns; moving average of the work done per loop
+	private volatile long lastLoopEnd = 0;		// in ns
+	private static final int BUSY_TIME_WEIGHT = 8;	// the last loop counts for 1/8 of the average
+	private static final long STALE_LAG = 1000000000L;	// 1 s, in ns; an idle dispatcher has no lag
 
 	public Dispatcher() {
 		// create selector
 		try {
 			selector = Selector.open();
-			pendingInvocations = new ArrayList<Runnable>();
+			pendingInvocations = new TaskQueue();
+			timingWheel = new TimingWheel(TIMEOUT_TICK, TIMEOUT_SLOTS, now());
 		}  catch (IOException ex) {
 			System.out.println("Cannot create selector.");
 			ex.printStackTrace();
@@ -19,11 +37,17 @@ public class Dispatcher implements Runnable {
 		} // end of catch
 	} // end of Disptacher
 
+	/* Runs runnable on the dispatcher thread before its next select
+	 * Only the task that makes the queue non-empty wakes the selector up: the tasks added after it
+	 * are drained in the same batch. Tasks added by the dispatcher thread itself need no wakeup
+	 */
 	public void addToDispatcherQueue(Runnable runnable) {
-		synchronized (pendingInvocations) { 
-			pendingInvocations.add(runnable); 
-		} 
-		selector.wakeup(); 
+		boolean wasEmpty = pendingInvocations.add(runnable);
+		if (wasEmpty && Thread.currentThread() != dispatcherThread) selector.wakeup();
+	}
+
+	public TaskQueue getDispatcherQueue() {
+		return pendingInvocations;
 	}
 
 	public SelectionKey registerNewSelection(SelectableChannel channel, 
@@ -35,6 +59,51 @@ public class Dispatcher implements Runnable {
 		return key;
 			} // end of registerNewChannel
 
+	/* Registers a channel handed over by another thread (e.g. the acceptor); the
+	 * registration itself runs on the thread of this dispatcher
+	 */
+	public void registerNewSelectionLater(final SelectableChannel channel,
+			final IChannelHandler handler,
+			final int ops,
+			final Runnable onRegistered) {
+		pendingRegistrations.incrementAndGet();
+		addToDispatcherQueue(new Runnable() {
+			@Override
+			public void run() {
+				pendingRegistrations.decrementAndGet();
+				try {
+					registerNewSelection(channel, handler, ops);
+					if (onRegistered != null) onRegistered.run();
+				} catch (ClosedChannelException e) {
+					Debug.DEBUG("Channel closed before registration: " + channel);
+				}
+			}
+		});
+	}
+
+	/* Runs task on the dispatcher thread after delayMillis, unless it is cancelled first
+	 * Must be called on the dispatcher thread
+	 */
+	public TimingWheel.Timeout scheduleTimeout(Runnable task, long delayMillis) {
+		return timingWheel.schedule(task, delayMillis, now());
+	}
+
+	/* Returns the number of channels handled by this dispatcher */
+	public int getLoad() {
+		return registeredChannels + pendingRegistrations.get();
+	}
+
+	/* Returns the lag of the select loop in ns: the average work done between two selects, or the
+	 * time spent in the current loop if it is longer (i.e. if the dispatcher is stalled right now)
+	 */
+	public long getLag() {
+		long now = System.nanoTime();
+		long since = busySince;
+		long current = (since == 0) ? 0 : now - since;
+		long average = (now - lastLoopEnd > STALE_LAG) ? 0 : averageBusyTime;
+		return Math.max(current, average);
+	}
+
 	public SelectionKey keyFor(SelectableChannel channel) {
 		return channel.keyFor(selector);
 	}
@@ -49,25 +118,29 @@ public class Dispatcher implements Runnable {
 
 	public void run() {
 
+		dispatcherThread = Thread.currentThread();
+
 		while (true) {
 			Debug.DEBUG("Enter selection");
 			
-			// Remove all SelectionKeys for which timeout has occurred
-			for (int i = 0; i < pendingInvocations.size(); i++) {
-				synchronized (pendingInvocations) {
-					pendingInvocations.get(i).run();
-					pendingInvocations.remove(i);
-				}
-			}
+			// Run invocations posted by other threads (handed over connections, worker responses)
+			pendingInvocations.drain();
+			loopFinished();
 			
 			try {
-				// check to see if any events
-				selector.select();
+				// check to see if any events .. wait no longer than the next tick of the timing wheel
+				// (and not at all if the drained tasks added more: those were added without a wakeup)
+				long waitMillis = timingWheel.getMillisToNextTick(now());
+				if (pendingInvocations.getDepth() > 0) selector.selectNow();
+				else if (waitMillis < 0) selector.select();
+				else selector.select(waitMillis);
 			}
 			catch (IOException ex) {
 				ex.printStackTrace();
 				break;
 			}		
+			busySince = System.nanoTime();
+			registeredChannels = selector.keys().size();
 
 			// readKeys is a set of ready events
 			Set<SelectionKey> readyKeys = selector.selectedKeys();
@@ -94,7 +167,8 @@ public class Dispatcher implements Runnable {
 							rwH.handleRead(key);
 						} // end of if isReadable
 
-						if (key.isWritable()) {
+						// the read may have closed the connection
+						if (key.isValid() && key.isWritable()) {
 							rwH.handleWrite(key);
 						} // end of if isWritable
 					} // end of readwrite
@@ -111,6 +185,22 @@ public class Dispatcher implements Runnable {
 
 			} // end of while (iterator.hasNext()) {
 
+			// Close the connections whose timeouts expired
+			timingWheel.advance(now());
+
 		} // end of while (true)
 	} // end of run
+
+	private void loopFinished() {
+		long since = busySince;
+		if (since == 0) return;
+		long now = System.nanoTime();
+		averageBusyTime += (now - since - averageBusyTime) / BUSY_TIME_WEIGHT;
+		lastLoopEnd = now;
+		busySince = 0;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Watches the document root (and every directory below it) with a WatchService on a daemon
+ * thread, and drops a path from the file cache, the mapped cache and the metadata cache as soon
+ * as it is created, modified or deleted on disk; pre-rendered replies go with the FileCache entry
+ * (ResponseCache is its removal listener). Edited files are thus served fresh without a restart
+ * and without turning the cache off.
+ * Cache keys are documentRoot + URL, so paths are turned into keys the same way; the gzip variant
+ * of a file (see GzipVariants) is dropped with it. When a watched directory is deleted or moved
+ * away, everything cached below it is dropped and its subdirectories are no longer watched.
+ * If the WatchService overflows (events were lost), every file loaded into a cache is revalidated
+ * against its mtime and size when it was loaded, all metadata is dropped and the whole tree is
+ * registered again (directories created meanwhile may have been missed).
+ * The generation is bumped on every invalidation: a request that read a file before an
+ * invalidation and caches it after can see that and drop its copy again.
+ */
+
+public class DocumentRootWatcher implements Runnable, CacheRemovalListener {
+
+	private String documentRoot;
+	private Path rootPath;
+	private FileCache cache;
+	private MappedFileCache mappedCache;		// null = none
+	private FileMetadataCache metadataCache;
+
+	private WatchService watchService;
+	private HashMap<WatchKey, Path> directories;	// only used by the watcher thread
+	private ConcurrentHashMap<String, FileMetadata> loadedFiles;	// metadata of cached files when loaded
+	private AtomicLong generation;
+
+	// Statistics
+	private AtomicLong events;
+	private AtomicLong invalidations;
+	private AtomicLong overflows;
+
+	public DocumentRootWatcher(String documentRoot, FileCache cache, MappedFileCache mappedCache,
+			FileMetadataCache metadataCache) throws IOException {
+
+		this.documentRoot = documentRoot;
+		this.cache = cache;
+		this.mappedCache = mappedCache;
+		this.metadataCache = metadataCache;
+		rootPath = Paths.get(documentRoot);
+		watchService = FileSystems.getDefault().newWatchService();
+		directories = new HashMap<WatchKey, Path>();
+		loadedFiles = new ConcurrentHashMap<String, FileMetadata>();
+		generation = new AtomicLong();
+		events = new AtomicLong();
+		invalidations = new AtomicLong();
+		overflows = new AtomicLong();
+		registerTree(rootPath);
+		cache.addRemovalListener(this);
+	}
+
+	/* Starts watching on a new daemon thread */
+	public void start() {
+		Thread thread = new Thread(this, "DocumentRootWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Called by the server after it put a file into the file or mapped cache, with the metadata it
+	 * read the file by
+	 */
+	public void fileLoaded(String key, FileMetadata metadata) {
+		loadedFiles.put(key, metadata);
+	}
+
+	/* The file left the FileCache .. nothing to revalidate any more */
+	public void entryRemoved(String key) {
+		loadedFiles.remove(key);
+	}
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	@Override
+	public void run() {
+
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				break;
+			} catch (ClosedWatchServiceException e) {
+				break;
+			}
+
+			Path directory = directories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				events.incrementAndGet();
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					revalidateAll();
+					continue;
+				}
+				if (directory == null) continue;
+
+				Path path = directory.resolve((Path) event.context());
+				invalidate(getKey(path));
+
+				// A directory that is gone (deleted or moved away) takes its cached files with it
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && directories.containsValue(path)) {
+					invalidateDirectory(path);
+				}
+
+				// Watch new directories too .. files created in them before they were registered
+				// have no events, so drop whatever may be cached for them
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+					registerTree(path);
+					invalidateTree(path);
+				}
+			}
+
+			if (!key.reset()) directories.remove(key);	// the directory is gone
+		}
+	}
+
+	/* Drops the file at key from all caches, with its gzip variant */
+	private void invalidate(String key) {
+		String variantKey = GzipVariants.getVariantKey(key);
+		generation.incrementAndGet();
+		invalidations.incrementAndGet();
+		Debug.DEBUG("Invalidating " + key);
+		cache.remove(key);
+		cache.remove(variantKey);
+		if (mappedCache != null) mappedCache.remove(key);
+		metadataCache.invalidate(key);
+		loadedFiles.remove(key);
+		loadedFiles.remove(variantKey);
+	}
+
+	/* Events were lost: drop every cached file whose mtime or size changed since it was loaded */
+	private void revalidateAll() {
+
+		overflows.incrementAndGet();
+		generation.incrementAndGet();
+		System.err.println("DocumentRootWatcher: events lost; revalidating cached files");
+		metadataCache.invalidateAll();
+		for (FileMetadata loaded : loadedFiles.values()) {
+			FileMetadata current = new FileMetadata(new File(loaded.getPath()), 0);
+			if (!current.exists() || current.lastModified() != loaded.lastModified() || current.length() != loaded.length()) {
+				invalidate(getKey(Paths.get(loaded.getPath())));
+			}
+		}
+		registerTree(rootPath);
+	}
+
+	/* Drops every file cached below the directory and stops watching the directories below it
+	 * (their WatchKeys would only report events for the path they were registered under)
+	 */
+	private void invalidateDirectory(Path start) {
+
+		String prefix = getKey(start) + "/";
+		generation.incrementAndGet();
+		for (String key : loadedFiles.keySet()) {
+			if (key.startsWith(prefix)) invalidate(key);	// gzip variant keys share the prefix
+		}
+		metadataCache.invalidatePrefix(prefix);
+
+		Iterator<Map.Entry<WatchKey, Path>> iterator = directories.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<WatchKey, Path> entry = iterator.next();
+			if (entry.getValue().startsWith(start)) {
+				entry.getKey().cancel();
+				iterator.remove();
+			}
+		}
+	}
+
+	/* Registers the directory and every directory below it */
+	private void registerTree(Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+					WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					directories.put(key, directory);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;	// e.g. removed meanwhile or not readable
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("IOException in watching " + start + ": " + e.getMessage());
+		}
+	}
+
+	private void invalidateTree(Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					invalidate(getKey(file));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("IOException in invalidating " + start + ": " + e.getMessage());
+		}
+	}
+
+	/* The cache key of the path: documentRoot + URL */
+	private String getKey(Path path) {
+		return documentRoot + "/" + rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	@Override
+	public String toString() {
+		return "DocumentRootWatcher[events=" + events.get() + ", invalidations=" + invalidations.get()
+				+ ", overflows=" + overflows.get() + ", trackedFiles=" + loadedFiles.size() + "]";
+	}
+}
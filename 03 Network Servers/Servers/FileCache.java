@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Cache of file contents keyed by full file path, bounded by the total number of bytes cached.
+ * When a new file doesn't fit, entries chosen by the CachePolicy are evicted to make room.
+ * All operations are atomic, so the size accounting can't be raced by concurrent requests.
+ * They hold a ReentrantLock rather than the monitor, so a virtual thread waiting for the
+ * cache doesn't pin its carrier thread.
+ * With an admission sketch (TinyLFU), a new file only displaces the policy's victims if it has
+ * been requested more often recently than all of them together; otherwise it is not cached at
+ * all, and the cache is left as it was.
+ */
+
+public class FileCache {
+
+	private HashMap<String, byte[]> entries;
+	private CachePolicy policy;
+	private FrequencySketch admissionSketch;	// null = admit every file
+	private long maxSize;		// in bytes
+	private long currentSize;	// in bytes
+	private ArrayList<CacheRemovalListener> removalListeners;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// Statistics
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;	// files not admitted by the admission sketch
+
+	public FileCache(long maxSize, CachePolicy policy) {
+		this(maxSize, policy, null);
+	}
+
+	public FileCache(long maxSize, CachePolicy policy, FrequencySketch admissionSketch) {
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.admissionSketch = admissionSketch;
+		entries = new HashMap<String, byte[]>();
+		currentSize = 0;
+		removalListeners = new ArrayList<CacheRemovalListener>();
+	}
+
+	public void addRemovalListener(CacheRemovalListener listener) {
+		lock.lock();
+		try {
+			removalListeners.add(listener);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns the cached contents of the file, or null if it is not cached */
+	public byte[] get(String key) {
+
+		lock.lock();
+		try {
+			// Every lookup counts towards the popularity of the file, cached or not
+			if (admissionSketch != null) admissionSketch.increment(key);
+
+			byte[] value = entries.get(key);
+			if (value != null) {
+				hits++;
+				policy.recordAccess(key);
+			} else {
+				misses++;
+			}
+			return value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Counts a request for the file whose reply was served from elsewhere (e.g. the ResponseCache)
+	 * as a lookup, so its recency, popularity and the hit ratio stay as if get had been called
+	 * Returns false if the file is not cached (any more)
+	 */
+	public boolean touch(String key) {
+
+		lock.lock();
+		try {
+			if (admissionSketch != null) admissionSketch.increment(key);
+			if (!entries.containsKey(key)) {
+				misses++;
+				return false;
+			}
+			hits++;
+			policy.recordAccess(key);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns the cached contents of the file without counting it as a request */
+	public byte[] peek(String key) {
+		lock.lock();
+		try {
+			return entries.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Adds the file to the cache, evicting other files if needed
+	 * Returns false if the file is larger than the whole cache or is not admitted
+	 */
+	public boolean put(String key, byte[] value) {
+
+		lock.lock();
+		try {
+			if (value.length > maxSize) return false;
+
+			// A concurrent request has cached the file already .. keep that copy
+			// (if the file has changed since, it is invalidated and read again)
+			if (entries.containsKey(key)) return true;
+
+			long toFree = currentSize + value.length - maxSize;
+			if (toFree > 0) {
+				// Pick all the victims needed to make room before evicting any of them
+				ArrayList<String> victims = new ArrayList<String>();
+				long freed = 0;
+				int victimsFrequency = 0;
+				Iterator<String> candidates = policy.victims();
+				while (freed < toFree && candidates.hasNext()) {
+					String victim = candidates.next();
+					victims.add(victim);
+					freed += entries.get(victim).length;
+					if (admissionSketch != null) victimsFrequency += admissionSketch.frequency(victim);
+				}
+				if (freed < toFree) return false;
+
+				// Only displace them if the new file is more popular than all of them together
+				if (admissionSketch != null && admissionSketch.frequency(key) <= victimsFrequency) {
+					rejections++;
+					return false;
+				}
+
+				for (int i = 0; i < victims.size(); i++) {
+					remove(victims.get(i));
+					evictions++;
+				}
+			}
+
+			entries.put(key, value);
+			currentSize += value.length;
+			policy.recordInsert(key);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void remove(String key) {
+
+		lock.lock();
+		try {
+			byte[] value = entries.remove(key);
+			if (value != null) {
+				currentSize -= value.length;
+				policy.recordRemoval(key);
+				for (int i = 0; i < removalListeners.size(); i++) {
+					removalListeners.get(i).entryRemoved(key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getCurrentSize() {
+		lock.lock();
+		try {
+			return currentSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		lock.lock();
+		try {
+			return hits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMisses() {
+		lock.lock();
+		try {
+			return misses;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEvictions() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejections() {
+		lock.lock();
+		try {
+			return rejections;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public double getHitRatio() {
+		lock.lock();
+		try {
+			long lookups = hits + misses;
+			return (lookups == 0) ? 0.0 : ((double) hits) / lookups;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "FileCache[size=" + currentSize + "/" + maxSize + " bytes, entries=" + entries.size()
+					+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+					+ ", rejections=" + rejections + "]";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+import java.io.File;
+
+/*
+ * What the server needs to know about a path on disk, read with one round of stat calls and
+ * then kept (immutable) in the FileMetadataCache. A path that does not exist has exists() false
+ * and all other fields false / 0.
+ */
+
+public class FileMetadata {
+
+	private final String path;
+	private final boolean exists;
+	private final boolean directory;
+	private final boolean executable;
+	private final long length;			// in bytes
+	private final long lastModified;	// in ms since the epoch
+	private final long expiresAt;		// in ns (System.nanoTime)
+
+	public FileMetadata(File file, long expiresAt) {
+		path = file.getPath();
+		exists = file.exists();
+		directory = exists && file.isDirectory();
+		executable = exists && file.canExecute();
+		length = (exists && !directory) ? file.length() : 0;
+		lastModified = exists ? file.lastModified() : 0;
+		this.expiresAt = expiresAt;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean exists() {
+		return exists;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public boolean canExecute() {
+		return executable;
+	}
+
+	/* A file that exists, is not a directory and is not executable, i.e. one served as is */
+	public boolean isStaticFile() {
+		return exists && !directory && !executable;
+	}
+
+	/* An executable that is not a directory, i.e. a CGI program */
+	public boolean isProgram() {
+		return executable && !directory;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long lastModified() {
+		return lastModified;
+	}
+
+	public boolean isExpired(long now) {
+		return now - expiresAt >= 0;
+	}
+}
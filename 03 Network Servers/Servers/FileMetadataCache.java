@@ -0,0 +1,111 @@
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Cache of FileMetadata keyed by full path, so that serving a request does not stat the same file
+ * over and over (exists, isDirectory, canExecute, length and lastModified each cost a syscall).
+ * Paths that do not exist are cached too, so a flood of requests for missing files and the
+ * index_m.html lookup for every directory don't reach the file system either.
+ * Entries live for ttl ms; a change on disk is seen at the latest that much later (or right away
+ * if the path is invalidated). At most maxEntries are kept: when full, expired entries are swept
+ * and, if that is not enough, the whole cache is dropped.
+ * A ttl of 0 disables caching: every get reads the metadata from disk.
+ */
+
+public class FileMetadataCache {
+
+	private ConcurrentHashMap<String, FileMetadata> entries;
+	private long ttl;			// in ns
+	private int maxEntries;
+
+	// Statistics
+	private AtomicLong hits;
+	private AtomicLong negativeHits;	// hits on paths that do not exist
+	private AtomicLong misses;
+	private AtomicLong invalidations;
+
+	public FileMetadataCache(long ttl, int maxEntries) {
+		entries = new ConcurrentHashMap<String, FileMetadata>();
+		this.ttl = ttl * 1000000;
+		this.maxEntries = maxEntries;
+		hits = new AtomicLong();
+		negativeHits = new AtomicLong();
+		misses = new AtomicLong();
+		invalidations = new AtomicLong();
+	}
+
+	/* Returns the metadata of the file at path, from the cache unless it has expired */
+	public FileMetadata get(String path) {
+
+		long now = System.nanoTime();
+		FileMetadata metadata = entries.get(path);
+		if (metadata != null && !metadata.isExpired(now)) {
+			hits.incrementAndGet();
+			if (!metadata.exists()) negativeHits.incrementAndGet();
+			return metadata;
+		}
+
+		misses.incrementAndGet();
+		metadata = new FileMetadata(new File(path), now + ttl);
+		if (ttl > 0 && maxEntries > 0) {
+			if (entries.size() >= maxEntries) makeRoom(now);
+			entries.put(path, metadata);
+		}
+		return metadata;
+	}
+
+	/* Drops the entry of path, e.g. after the file was found to have changed */
+	public void invalidate(String path) {
+		if (entries.remove(path) != null) invalidations.incrementAndGet();
+	}
+
+	/* Drops the entries of all paths starting with prefix, e.g. of a directory that is gone */
+	public void invalidatePrefix(String prefix) {
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().startsWith(prefix)) {
+				iterator.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/* Drops all entries */
+	public void invalidateAll() {
+		invalidations.addAndGet(entries.size());
+		entries.clear();
+	}
+
+	private void makeRoom(long now) {
+		Iterator<FileMetadata> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now)) iterator.remove();
+		}
+		if (entries.size() >= maxEntries) entries.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "FileMetadataCache[entries=" + entries.size() + "/" + maxEntries + ", ttl=" + ttl / 1000000
+				+ " ms, hits=" + hits.get() + ", negativeHits=" + negativeHits.get() + ", misses=" + misses.get()
+				+ ", invalidations=" + invalidations.get() + "]";
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Count-min sketch estimating how often each key has been requested recently (TinyLFU).
+ * Each key maps to one counter in each of DEPTH rows; its estimate is the smallest of them.
+ * Counters saturate at MAX_COUNT and all of them are halved after every sampleSize
+ * increments, so old popularity fades away and the estimate tracks the current workload.
+ * Not thread safe: FileCache only uses it while holding its lock.
+ */
+
+public class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+	private static final int AVERAGE_CACHED_FILE_SIZE = 16 * 1024;	// in bytes
+
+	private byte[][] counters;
+	private int widthMask;
+	private int sampleSize;		// # of increments after which the counters are aged
+	private int additions;
+
+	/* expectedEntries: roughly the number of distinct keys expected to be in the cache */
+	public FrequencySketch(int expectedEntries) {
+		int width = 1;
+		while (width < Math.max(expectedEntries, 16) && width < (1 << 24)) width <<= 1;
+		widthMask = width - 1;
+		counters = new byte[DEPTH][width];
+		sampleSize = 10 * width;
+		additions = 0;
+	}
+
+	/* Returns a sketch sized for a cache of maxCacheSize bytes */
+	public static FrequencySketch forCacheSize(long maxCacheSize) {
+		return new FrequencySketch((int) Math.min(maxCacheSize / AVERAGE_CACHED_FILE_SIZE, 1 << 24));
+	}
+
+	public void increment(String key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int idx = indexOf(hash, i);
+			if (counters[i][idx] < MAX_COUNT) {
+				counters[i][idx]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) age();
+	}
+
+	public int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int min = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			min = Math.min(min, counters[i][indexOf(hash, i)]);
+		}
+		return min;
+	}
+
+	/* Halves all counters */
+	private void age() {
+		for (int i = 0; i < DEPTH; i++) {
+			for (int j = 0; j < counters[i].length; j++) {
+				counters[i][j] = (byte) (counters[i][j] >> 1);
+			}
+		}
+		additions /= 2;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+		h ^= h >>> 16;
+		return h & widthMask;
+	}
+
+	private int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xED5AD4BB;
+		hash ^= hash >>> 11;
+		return hash;
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Gzip-compressed variants of compressible files (HTML, text, CSS, scripts, ...), kept in the
+ * FileCache next to the identity version under getVariantKey(key), so both share the cache budget
+ * and its eviction policy.
+ * A variant is made once, on the first request that accepts gzip and finds none: the file is
+ * compressed on a background WorkerPool and that request (and any until the variant is cached)
+ * is served uncompressed. A file that doesn't shrink gets an empty variant, which means "serve
+ * the identity version" and keeps it from being compressed again.
+ * With a DocumentRootWatcher, a variant compressed from a file that changed meanwhile is dropped
+ * again, and variants are dropped with their file when it changes.
+ */
+
+public class GzipVariants {
+
+	// Not a valid path character, so no URL maps to a variant key
+	private static final String VARIANT_SUFFIX = "\0gzip";
+
+	private static final int MIN_LENGTH = 256;		// in bytes; smaller files aren't worth compressing
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final HashSet<String> COMPRESSIBLE_TYPES = new HashSet<String>(Arrays.asList(
+			"html", "htm", "txt", "text", "css", "js", "json", "xml", "svg", "csv"));
+
+	private FileCache cache;
+	private DocumentRootWatcher documentRootWatcher;	// null = none
+	private WorkerPool compressionPool;
+	private ConcurrentHashMap<String, Boolean> pending;	// keys with a compression queued or running
+
+	// Statistics
+	private AtomicLong compressed;
+	private AtomicLong incompressible;
+	private AtomicLong bytesIn;
+	private AtomicLong bytesOut;
+
+	public GzipVariants(FileCache cache, DocumentRootWatcher documentRootWatcher, int numThreads, int queueCapacity) {
+		this.cache = cache;
+		this.documentRootWatcher = documentRootWatcher;
+		compressionPool = new WorkerPool(numThreads, queueCapacity);
+		pending = new ConcurrentHashMap<String, Boolean>();
+		compressed = new AtomicLong();
+		incompressible = new AtomicLong();
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+	}
+
+	public static String getVariantKey(String key) {
+		return key + VARIANT_SUFFIX;
+	}
+
+	/* contentType is the file extension, as the server uses it */
+	public static boolean isCompressible(String contentType, long length) {
+		return length >= MIN_LENGTH && COMPRESSIBLE_TYPES.contains(contentType.toLowerCase());
+	}
+
+	/* Returns the gzip variant of the file, an empty array if it has none worth sending,
+	 * or null if it hasn't been made (yet)
+	 */
+	public byte[] get(String key) {
+		return cache.get(getVariantKey(key));
+	}
+
+	/* Returns the gzip variant without counting it as a request */
+	public byte[] peek(String key) {
+		return cache.peek(getVariantKey(key));
+	}
+
+	/* Queues the compression of the file at key (its full path) unless one is queued already
+	 * identity: the file's contents if at hand, else it is read from disk
+	 * metadata: of the file the contents are from, for revalidation by the watcher
+	 */
+	public void compressLater(final String key, final byte[] identity, final FileMetadata metadata) {
+
+		if (pending.putIfAbsent(key, Boolean.TRUE) != null) return;
+		final long generation = (documentRootWatcher != null) ? documentRootWatcher.getGeneration() : 0;
+		boolean submitted = compressionPool.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compress(key, identity, metadata, generation);
+				} finally {
+					pending.remove(key);
+				}
+			}
+		});
+		if (!submitted) pending.remove(key);	// busy .. a later request will try again
+	}
+
+	private void compress(String key, byte[] identity, FileMetadata metadata, long generation) {
+
+		byte[] variant;
+		long identityLength;
+		try {
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			OutputStream out = new GZIPOutputStream(gzipped, BUFFER_SIZE);
+			if (identity != null) {
+				out.write(identity);
+				identityLength = identity.length;
+			} else {
+				identityLength = copy(new FileInputStream(key), out, gzipped);
+			}
+			out.close();
+			variant = gzipped.toByteArray();
+		} catch (IOException e) {
+			System.err.println("IOException in compressing file: " + e.getMessage());
+			return;
+		}
+
+		if (identityLength < 0 || variant.length > cache.getMaxSize()) return;	// would never be cached
+		if (variant.length >= identityLength) {
+			variant = new byte[0];
+			incompressible.incrementAndGet();
+		} else {
+			bytesIn.addAndGet(identityLength);
+			bytesOut.addAndGet(variant.length);
+			compressed.incrementAndGet();
+		}
+		String variantKey = getVariantKey(key);
+		if (!cache.put(variantKey, variant) || documentRootWatcher == null) return;
+
+		// The file may have changed while it was compressed
+		documentRootWatcher.fileLoaded(variantKey, metadata);
+		if (documentRootWatcher.getGeneration() != generation) cache.remove(variantKey);
+	}
+
+	/* Copies in to out (compressing into gzipped); returns the # of bytes copied, or -1 if it
+	 * stopped because the compressed output grew larger than the cache
+	 */
+	private long copy(InputStream in, OutputStream out, ByteArrayOutputStream gzipped) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long length = 0;
+		try {
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) != -1) {
+				out.write(buffer, 0, bytesRead);
+				length += bytesRead;
+				if (gzipped.size() > cache.getMaxSize()) return -1;
+			}
+		} finally {
+			in.close();
+		}
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		long in = bytesIn.get();
+		return "GzipVariants[compressed=" + compressed.get() + ", incompressible=" + incompressible.get()
+				+ ", pending=" + pending.size() + ", ratio=" + ((in == 0) ? 0 : bytesOut.get() * 1000 / in / 10.0)
+				+ "%, pool=" + compressionPool + "]";
+	}
+}
@@ -0,0 +1,134 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.HashMap;
+
+/*
+ * Measures the heap allocated and the time taken per reply header, encoded the way serveRequest
+ * used to (a new SimpleDateFormat and Calendar per request, every literal turned into bytes again)
+ * and with ResponseHeaderWriter, both into a reused buffer and into a new reply array of the
+ * exact size (as createReplyMessage does).
+ * Allocation is read from the per-thread counter of the HotSpot ThreadMXBean, so the numbers are
+ * exact for the benchmark thread; each variant is warmed up first so that the JIT has settled.
+ *
+ * usage: java HeaderBenchmark [-iterations <# of headers per variant>]
+ */
+
+public class HeaderBenchmark {
+
+	private static final String ITERATIONS_ARG = "-iterations";
+
+	private static final String SERVER_NAME = "HeaderBenchmark";
+	private static final String STATUS_OK = "200 OK";
+
+	private static volatile Object sink;	// keeps the JIT from dropping the work
+
+	public static void main(String[] args) {
+
+		HashMap<String, String> argsMap = parseArgs(args);
+		int iterations = (argsMap.get(ITERATIONS_ARG) != null) ? Integer.parseInt(argsMap.get(ITERATIONS_ARG)) : 1000000;
+
+		com.sun.management.ThreadMXBean threadBean;
+		try {
+			threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		} catch (ClassCastException e) {
+			System.err.println("Per-thread allocation counters are not available on this JVM");
+			return;
+		}
+
+		final ResponseHeaderWriter headerWriter = new ResponseHeaderWriter(SERVER_NAME);
+		final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+		Runnable[] variants = {
+			new Runnable() {
+				@Override
+				public void run() {
+					sink = createHeader(STATUS_OK, "html", "" + 5120, true);
+				}
+			},
+			new Runnable() {
+				@Override
+				public void run() {
+					buffer.clear();
+					headerWriter.write(buffer, STATUS_OK, "html", 5120, true);
+				}
+			},
+			new Runnable() {
+				@Override
+				public void run() {
+					byte[] date = headerWriter.getDate();
+					ByteBuffer reply = ByteBuffer.allocate(headerWriter.getHeaderLength(STATUS_OK, date, "html", 5120, true));
+					headerWriter.write(reply, STATUS_OK, date, "html", 5120, true);
+					sink = reply.array();
+				}
+			}
+		};
+		String[] names = { "Per-request formatting", "ResponseHeaderWriter (reused buffer)", "ResponseHeaderWriter (new array)" };
+
+		System.out.println("========== Header benchmark: " + iterations + " headers per variant ==========");
+		long threadId = Thread.currentThread().getId();
+		for (int v = 0; v < variants.length; v++) {
+			for (int i = 0; i < iterations; i++) variants[v].run();	// warm up
+
+			long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			long startTime = System.nanoTime();
+			for (int i = 0; i < iterations; i++) variants[v].run();
+			long elapsed = System.nanoTime() - startTime;
+			long allocated = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+			System.out.println();
+			System.out.println(names[v]);
+			System.out.println("Allocated per header (bytes): " + allocated / iterations);
+			System.out.println("Time per header (ns): " + elapsed / iterations);
+		}
+	}
+
+	/* The header as createReplyMessage built it before ResponseHeaderWriter */
+	private static byte[] createHeader(String statusCode, String contentType, String lengthOfFile, boolean keepAlive) {
+
+		DateFormat dateFormat = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z");
+		Calendar cal = Calendar.getInstance();
+		String date = dateFormat.format(cal.getTime());
+
+		ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+		try {
+			String crlf = "\r\n";
+			byteBuffer.write("HTTP/1.0 ".getBytes());
+			byteBuffer.write(statusCode.getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write("Date: ".getBytes());
+			byteBuffer.write(date.getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write("Server: ".getBytes());
+			byteBuffer.write(SERVER_NAME.getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write("Content-Type: ".getBytes());
+			byteBuffer.write(contentType.getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write("Content-Length: ".getBytes());
+			byteBuffer.write(lengthOfFile.getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write("Connection: ".getBytes());
+			byteBuffer.write((keepAlive ? "keep-alive" : "close").getBytes());
+			byteBuffer.write(crlf.getBytes());
+			byteBuffer.write(crlf.getBytes());
+		} catch (Exception e) {
+			System.err.println("Error in creating header: " + e.getMessage());
+		}
+		return byteBuffer.toByteArray();
+	}
+
+	/* Takes in args from terminal and returns a HashMap of < arg name , arg value >
+	 */
+	private static HashMap<String, String> parseArgs(String[] args) {
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			argsMap.put(args[i], args[i+1]);
+		}
+		return argsMap;
+	}
+}
@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Incremental parser of HTTP request heads, fed straight from ByteBuffers as bytes arrive.
+ * It keeps its state across calls, so a request (or its CRLF CRLF terminator) may be split over
+ * any number of reads, and it never reads past the end of the head: the bytes of a pipelined
+ * request that follows stay in the buffer for the next call.
+ * Lines may end with CRLF or a bare LF; empty lines before the request line are skipped.
+ * One parser is used per connection, for one request after another.
+ */
+
+public class HttpRequestParser {
+
+	public static final int MAX_REQUEST_SIZE = 8192;	// in bytes
+	private static final int INITIAL_HEAD_SIZE = 512;
+	private static final int INITIAL_HEADERS = 8;
+
+	private byte[] head;		// bytes of the current request head so far
+	private int length;
+	private int lineStart;		// offset in head of the line being read
+	private boolean requestLineRead;
+	private int[] requestLineOffsets;
+	private int[] headerOffsets;
+	private int headerCount;
+	private boolean error;		// the request head is larger than MAX_REQUEST_SIZE
+
+	public HttpRequestParser() {
+		head = new byte[INITIAL_HEAD_SIZE];
+		requestLineOffsets = new int[8];
+		headerOffsets = new int[4 * INITIAL_HEADERS];
+		reset();
+	}
+
+	/* Consumes bytes from buffer (in read mode) up to the end of the current request head
+	 * Returns the request once its head is complete, or null if more input is needed (or on error)
+	 */
+	public SHTTPRequest parse(ByteBuffer buffer) {
+
+		while (buffer.hasRemaining()) {
+			if (length == MAX_REQUEST_SIZE) {
+				error = true;
+				return null;
+			}
+			byte b = buffer.get();
+			if (length == head.length) head = Arrays.copyOf(head, Math.min(2 * head.length, MAX_REQUEST_SIZE));
+			head[length++] = b;
+			if (b != '\n') continue;
+
+			// A complete line: [lineStart, lineEnd) without its CRLF
+			int lineEnd = length - 1;
+			if (lineEnd > lineStart && head[lineEnd - 1] == '\r') lineEnd--;
+
+			if (lineEnd == lineStart) {
+				if (!requestLineRead) {
+					// skip empty lines before a request (e.g. a stray CRLF after the previous one)
+					length = 0;
+					lineStart = 0;
+					continue;
+				}
+				return complete();
+			}
+
+			if (!requestLineRead) {
+				parseRequestLine(lineStart, lineEnd);
+				requestLineRead = true;
+			} else {
+				parseHeaderLine(lineStart, lineEnd);
+			}
+			lineStart = length;
+		}
+		return null;
+	}
+
+	/* Called once the input has ended: returns the request read so far if it has at least a
+	 * request line (a client may close its side without ending the head), or null
+	 */
+	public SHTTPRequest finish() {
+		if (error || !requestLineRead) return null;
+		if (lineStart < length) parseHeaderLine(lineStart, length);
+		return complete();
+	}
+
+	public boolean isError() {
+		return error;
+	}
+
+	/* Returns the number of bytes of an incomplete request head read so far */
+	public int getBufferedLength() {
+		return length;
+	}
+
+	public void reset() {
+		length = 0;
+		lineStart = 0;
+		requestLineRead = false;
+		Arrays.fill(requestLineOffsets, 0);
+		requestLineOffsets[4] = -1;	// no query
+		requestLineOffsets[5] = -1;
+		headerCount = 0;
+		error = false;
+	}
+
+	private SHTTPRequest complete() {
+		SHTTPRequest request = new SHTTPRequest(Arrays.copyOf(head, length), requestLineOffsets,
+				Arrays.copyOf(headerOffsets, 4 * headerCount), headerCount);
+		reset();
+		return request;
+	}
+
+	/* <method> SP <path>[?<query>] SP <version> .. anything else leaves parts empty (invalid) */
+	private void parseRequestLine(int start, int end) {
+
+		int firstSpace = indexOf((byte) ' ', start, end);
+		if (firstSpace < 0) return;
+		int secondSpace = indexOf((byte) ' ', firstSpace + 1, end);
+		if (secondSpace < 0 || indexOf((byte) ' ', secondSpace + 1, end) >= 0) return;
+
+		requestLineOffsets[0] = start;
+		requestLineOffsets[1] = firstSpace;
+		int targetStart = firstSpace + 1;
+		int queryIdx = indexOf((byte) '?', targetStart, secondSpace);
+		requestLineOffsets[2] = targetStart;
+		requestLineOffsets[3] = (queryIdx < 0) ? secondSpace : queryIdx;
+		if (queryIdx >= 0) {
+			requestLineOffsets[4] = queryIdx + 1;
+			requestLineOffsets[5] = secondSpace;
+		}
+		requestLineOffsets[6] = secondSpace + 1;
+		requestLineOffsets[7] = end;
+	}
+
+	/* <name>: <value> .. surrounding white space is dropped; lines without a colon are ignored */
+	private void parseHeaderLine(int start, int end) {
+
+		int colon = indexOf((byte) ':', start, end);
+		if (colon <= start) return;
+
+		int nameStart = skipWhiteSpace(start, colon);
+		int nameEnd = trimWhiteSpace(nameStart, colon);
+		int valueStart = skipWhiteSpace(colon + 1, end);
+		int valueEnd = trimWhiteSpace(valueStart, end);
+
+		if (4 * (headerCount + 1) > headerOffsets.length) headerOffsets = Arrays.copyOf(headerOffsets, 2 * headerOffsets.length);
+		headerOffsets[4 * headerCount] = nameStart;
+		headerOffsets[4 * headerCount + 1] = nameEnd;
+		headerOffsets[4 * headerCount + 2] = valueStart;
+		headerOffsets[4 * headerCount + 3] = valueEnd;
+		headerCount++;
+	}
+
+	private int indexOf(byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (head[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private int skipWhiteSpace(int start, int end) {
+		while (start < end && (head[start] == ' ' || head[start] == '\t')) start++;
+		return start;
+	}
+
+	private int trimWhiteSpace(int start, int end) {
+		while (end > start && (head[end - 1] == ' ' || head[end - 1] == '\t' || head[end - 1] == '\r')) end--;
+		return end;
+	}
+}
@@ -0,0 +1,37 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Evicts the least recently used entry of the cache
+ */
+
+public class LRUCachePolicy implements CachePolicy {
+
+	// Keys in access order: least recently used first
+	private LinkedHashMap<String, Boolean> accessOrder;
+
+	public LRUCachePolicy() {
+		accessOrder = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	}
+
+	public void recordInsert(String key) {
+		accessOrder.put(key, Boolean.TRUE);
+	}
+
+	public void recordAccess(String key) {
+		accessOrder.get(key);
+	}
+
+	public void recordRemoval(String key) {
+		accessOrder.remove(key);
+	}
+
+	public String selectVictim() {
+		if (accessOrder.isEmpty()) return null;
+		return accessOrder.keySet().iterator().next();
+	}
+
+	public Iterator<String> victims() {
+		return accessOrder.keySet().iterator();
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of latencies in ns with HDR-style log-linear buckets: exact below 64 ns, then 32
+ * buckets per power of two, so any recorded value is known to within ~3% over the whole range
+ * of a long with under 2000 buckets.
+ * Recording is lock-free and spread over stripes picked by thread id, so threads recording at
+ * the same time rarely touch the same cache lines; reading sums the stripes (a read that races
+ * with recordings may miss the latest of them, which is fine for statistics).
+ */
+
+public class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 64;	// values below are counted exactly
+	private static final int SUB_BUCKET_BITS = 5;	// 32 buckets per power of two above
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BITS = 6;		// log2(LINEAR_BUCKETS)
+	private static final int NUM_BUCKETS = LINEAR_BUCKETS + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	// Per stripe: NUM_BUCKETS counts, then count, sum and max
+	private static final int COUNT = NUM_BUCKETS;
+	private static final int SUM = NUM_BUCKETS + 1;
+	private static final int MAX = NUM_BUCKETS + 2;
+	private static final int STRIPE_LENGTH = NUM_BUCKETS + 3;
+
+	private AtomicLongArray[] stripes;
+	private int stripeMask;
+
+	public LatencyHistogram() {
+		int numStripes = 1;
+		while (numStripes < Runtime.getRuntime().availableProcessors() && numStripes < 8) numStripes <<= 1;
+		stripes = new AtomicLongArray[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new AtomicLongArray(STRIPE_LENGTH);
+		}
+		stripeMask = numStripes - 1;
+	}
+
+	/* Records one latency in ns; negative values count as 0 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+		stripe.incrementAndGet(getBucket(value));
+		stripe.incrementAndGet(COUNT);
+		stripe.addAndGet(SUM, value);
+		long max;
+		while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (AtomicLongArray stripe : stripes) count += stripe.get(COUNT);
+		return count;
+	}
+
+	public long getMean() {
+		long count = 0;
+		long sum = 0;
+		for (AtomicLongArray stripe : stripes) {
+			count += stripe.get(COUNT);
+			sum += stripe.get(SUM);
+		}
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	public long getMax() {
+		long max = 0;
+		for (AtomicLongArray stripe : stripes) max = Math.max(max, stripe.get(MAX));
+		return max;
+	}
+
+	/* Returns the latency (in ns) below which percentile % of the recorded values fall, e.g. 99.9 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[NUM_BUCKETS];
+		long total = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				long count = stripe.get(i);
+				counts[i] += count;
+				total += count;
+			}
+		}
+		if (total == 0) return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(getBucketHighestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	private static int getBucket(long value) {
+		if (value < LINEAR_BUCKETS) return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;	// top bits below the leading one
+		return LINEAR_BUCKETS + (msb - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketHighestValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS) return bucket;
+		int msb = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		int shift = msb - SUB_BUCKET_BITS;
+		long lowest = ((long) (SUB_BUCKETS + subBucket)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
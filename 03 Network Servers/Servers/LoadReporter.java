@@ -0,0 +1,17 @@
+/*
+ * A plugin that reports how loaded the server is as a number rather than the yes/no of
+ * LoadBalancer, so that an upstream proxy can weigh servers against each other.
+ * /load returns the report in its body when the configured LoadBalancer is also a LoadReporter.
+ */
+
+public interface LoadReporter {
+
+	// Called once by the SHTTPServer before any request is served
+	public void setServerLoad(ServerLoad serverLoad);
+
+	// 0 = idle, 1 = at capacity; above 1 the server is overloaded
+	public double getLoadScore();
+
+	// The given score (from getLoadScore) on the first line, followed by the figures behind it
+	public String getLoadReport(double loadScore);
+}
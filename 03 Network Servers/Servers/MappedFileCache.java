@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Off-heap tier of the file cache: large files are kept as read-only memory mapped buffers
+ * instead of byte[], so they cost no heap and no GC time and can be written to a channel
+ * without being copied onto the heap first.
+ * Bounded by the total number of bytes mapped; victims are chosen by the CachePolicy.
+ * Locked with a ReentrantLock rather than the monitor so virtual threads don't pin their carrier.
+ * NOTE: an evicted mapping is only unmapped once its buffer is garbage collected
+ */
+
+public class MappedFileCache {
+
+	private HashMap<String, MappedByteBuffer> entries;
+	private CachePolicy policy;
+	private long maxSize;		// in bytes
+	private long currentSize;	// in bytes
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// Statistics
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public MappedFileCache(long maxSize, CachePolicy policy) {
+		this.maxSize = maxSize;
+		this.policy = policy;
+		entries = new HashMap<String, MappedByteBuffer>();
+		currentSize = 0;
+	}
+
+	/* Returns a read-only view of the cached file (with its own position), or null if not cached */
+	public ByteBuffer get(String key) {
+
+		lock.lock();
+		try {
+			MappedByteBuffer value = entries.get(key);
+			if (value == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			policy.recordAccess(key);
+			return value.asReadOnlyBuffer();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Maps the file into memory and caches it, evicting other files if needed
+	 * Returns a read-only view of the mapped file, or null if it is larger than the whole cache
+	 */
+	public ByteBuffer put(String key, File file) throws IOException {
+
+		long length = file.length();
+		if (length > maxSize || length > Integer.MAX_VALUE) return null;
+
+		// Map the file outside the lock; the mapping stays valid after the channel is closed
+		FileInputStream in = new FileInputStream(file);
+		MappedByteBuffer mapped;
+		try {
+			FileChannel fileChannel = in.getChannel();
+			mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		} finally {
+			in.close();
+		}
+
+		lock.lock();
+		try {
+			// A concurrent request may have mapped the file already
+			remove(key);
+
+			while (currentSize + mapped.capacity() > maxSize) {
+				String victim = policy.selectVictim();
+				if (victim == null) return null;
+				remove(victim);
+				evictions++;
+			}
+
+			entries.put(key, mapped);
+			currentSize += mapped.capacity();
+			policy.recordInsert(key);
+		} finally {
+			lock.unlock();
+		}
+		return mapped.asReadOnlyBuffer();
+	}
+
+	public void remove(String key) {
+
+		lock.lock();
+		try {
+			MappedByteBuffer value = entries.remove(key);
+			if (value != null) {
+				currentSize -= value.capacity();
+				policy.recordRemoval(key);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getCurrentSize() {
+		lock.lock();
+		try {
+			return currentSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		lock.lock();
+		try {
+			return hits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMisses() {
+		lock.lock();
+		try {
+			return misses;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEvictions() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "MappedFileCache[size=" + currentSize + "/" + maxSize + " bytes, entries=" + entries.size()
+					+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,456 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/*
+ * Open-loop load generator: starts requests at a fixed target rate, whether or not earlier ones
+ * have been answered, so that a slow server faces a growing backlog just as it would from real
+ * users (SHTTPTestClient's threads wait for each reply before sending again, so a stalled server
+ * also stalls the load and the stall hides from the statistics: coordinated omission).
+ * One thread drives all connections through a Selector; each request is a GET over its own
+ * connection, like SHTTPTestClient's.
+ * Latencies are measured from the time a request was scheduled to start, not from when it was
+ * actually sent: if -connections requests are already outstanding, or the generator itself falls
+ * behind, the waiting counts against the server (the corrected latency). The latency from the
+ * actual send is reported as well, to show how much coordinated omission would hide.
+ * Time to first byte (first byte of the reply) and time to last byte (whole reply received) are
+ * recorded separately in LatencyHistograms; bytes received are counted off the socket.
+ * With -trace instead of -files and -rate, requests are replayed from a trace (e.g. written by
+ * WorkloadGenerator), one "<inter-arrival time in us>\t<URL>" per line, so that server variants
+ * can be compared on exactly the same traffic; the replay stops after -T seconds.
+ * With -encoding gzip, every request carries "Accept-Encoding: gzip".
+ *
+ * usage: java OpenLoopLoadGenerator -server <server> -port <server port> -files <file name>
+ *            -T <time of test in seconds> -rate <requests per second> [-connections <max # of open connections>]
+ *            [-encoding <accepted content coding>]
+ *        java OpenLoopLoadGenerator -server <server> -port <server port> -trace <trace file>
+ *            -T <time of test in seconds> [-connections <max # of open connections>] [-encoding <accepted content coding>]
+ */
+
+public class OpenLoopLoadGenerator {
+
+	private static final String SERVER_ARG = "-server";
+	private static final String PORT_ARG = "-port";
+	private static final String FILES_ARG = "-files";
+	private static final String TIME_ARG = "-T";
+	private static final String RATE_ARG = "-rate";
+	private static final String CONNECTIONS_ARG = "-connections";
+	private static final String TRACE_ARG = "-trace";
+	private static final String ENCODING_ARG = "-encoding";
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final long CLIENT_TIMEOUT = ClientRequestThread.CLIENT_TIMEOUT * 1000000L;	// in ns
+
+	private InetSocketAddress serverAddress;
+	private byte[][] requestMessages;	// one per file to request, in order; or per trace entry
+	private double rate;				// requests per second; 0 when replaying a trace
+	private long[] traceStarts;			// in ns from the start of the run, per trace entry; null = fixed rate
+	private String loadName;
+	private int maxConnections;
+
+	private Selector selector;
+	private ByteBuffer readBuffer;
+	private ArrayDeque<Request> backlog;	// scheduled but waiting for a free connection
+	private ArrayList<Request> outstanding;	// connected (or connecting), not yet finished
+	private int nextFile;
+	private long runTime;		// in ns, over which requests were scheduled
+
+	// Statistics
+	private long scheduled;
+	private long completed;
+	private long errors;
+	private long timeouts;
+	private long bytesReceived;
+	private long maxBacklog;		// most requests waiting for a connection at once
+	private HashMap<String, Long> statusCounts;
+	private LatencyHistogram firstByteLatency;		// from scheduled start
+	private LatencyHistogram lastByteLatency;		// from scheduled start
+	private LatencyHistogram uncorrectedLatency;	// last byte, from the actual send
+
+	/* acceptEncoding: sent as Accept-Encoding with every request; null = none */
+	public OpenLoopLoadGenerator(InetSocketAddress serverAddress, ArrayList<String> filesToRequest,
+			double rate, int maxConnections, String acceptEncoding) {
+
+		this(serverAddress, maxConnections);
+		this.rate = rate;
+		loadName = "target " + rate + " requests per second";
+		requestMessages = new byte[filesToRequest.size()][];
+		for (int i = 0; i < requestMessages.length; i++) {
+			requestMessages[i] = createRequestMessage(filesToRequest.get(i), acceptEncoding);
+		}
+	}
+
+	/* Replays the requests of traceFile at their recorded inter-arrival times */
+	public OpenLoopLoadGenerator(InetSocketAddress serverAddress, String traceFile, int maxConnections,
+			String acceptEncoding) throws IOException {
+
+		this(serverAddress, maxConnections);
+		loadName = "replay of " + traceFile;
+		ArrayList<Long> starts = new ArrayList<Long>();
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		BufferedReader br = new BufferedReader(new FileReader(traceFile));
+		try {
+			long start = 0;
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] entry = line.split("\t");
+				if (entry.length != 2) throw new IOException("Invalid trace line: " + line);
+				try {
+					start += Long.parseLong(entry[0]) * 1000;	// us to ns
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid trace line: " + line);
+				}
+				starts.add(start);
+				messages.add(createRequestMessage(entry[1], acceptEncoding));
+			}
+		} finally {
+			br.close();
+		}
+		if (starts.isEmpty()) throw new IOException("Empty trace: " + traceFile);
+		traceStarts = new long[starts.size()];
+		for (int i = 0; i < traceStarts.length; i++) traceStarts[i] = starts.get(i);
+		requestMessages = messages.toArray(new byte[messages.size()][]);
+	}
+
+	private OpenLoopLoadGenerator(InetSocketAddress serverAddress, int maxConnections) {
+
+		this.serverAddress = serverAddress;
+		this.maxConnections = maxConnections;
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		backlog = new ArrayDeque<Request>();
+		outstanding = new ArrayList<Request>();
+		statusCounts = new HashMap<String, Long>();
+		firstByteLatency = new LatencyHistogram();
+		lastByteLatency = new LatencyHistogram();
+		uncorrectedLatency = new LatencyHistogram();
+	}
+
+	public static void main(String[] args) {
+
+		HashMap<String, String> argsMap = parseArgs(args);
+		boolean replay = argsMap.get(TRACE_ARG) != null;
+		if (argsMap.get(SERVER_ARG) == null || argsMap.get(PORT_ARG) == null || argsMap.get(TIME_ARG) == null
+				|| (!replay && (argsMap.get(FILES_ARG) == null || argsMap.get(RATE_ARG) == null))) {
+			System.err.println("Usage: -server <server> -port <server port> -files <file name> "
+					+ "-T <time of test in seconds> -rate <requests per second> [-connections <max # of open connections>] "
+					+ "[-encoding <accepted content coding>]\n"
+					+ "   or: -server <server> -port <server port> -trace <trace file> "
+					+ "-T <time of test in seconds> [-connections <max # of open connections>] [-encoding <accepted content coding>]");
+			return;
+		}
+
+		OpenLoopLoadGenerator generator;
+		int testTime;
+		try {
+			InetAddress serverAddress = InetAddress.getByName(argsMap.get(SERVER_ARG));
+			int serverPort = Integer.parseInt(argsMap.get(PORT_ARG));
+			testTime = Integer.parseInt(argsMap.get(TIME_ARG));
+			int maxConnections = (argsMap.get(CONNECTIONS_ARG) != null) ? Integer.parseInt(argsMap.get(CONNECTIONS_ARG)) : 1000;
+			if (maxConnections <= 0 || testTime <= 0)
+				throw new IllegalArgumentException("connections and time must not be 0");
+			if (replay) {
+				generator = new OpenLoopLoadGenerator(new InetSocketAddress(serverAddress, serverPort),
+						argsMap.get(TRACE_ARG), maxConnections, argsMap.get(ENCODING_ARG));
+			} else {
+				ArrayList<String> filesToRequest = getFilesToRequest(argsMap.get(FILES_ARG));
+				double rate = Double.parseDouble(argsMap.get(RATE_ARG));
+				if (filesToRequest.isEmpty() || rate <= 0)
+					throw new IllegalArgumentException("files and rate must not be empty or 0");
+				generator = new OpenLoopLoadGenerator(new InetSocketAddress(serverAddress, serverPort),
+						filesToRequest, rate, maxConnections, argsMap.get(ENCODING_ARG));
+			}
+		} catch (Exception e) {
+			System.err.println("Exception in parsing args: " + e.getMessage());
+			return;
+		}
+
+		try {
+			generator.run(testTime);
+		} catch (IOException e) {
+			System.err.println("IOException in running load: " + e.getMessage());
+			return;
+		}
+		generator.printStatistics();
+	}
+
+	/* Schedules requests for testTime seconds, then waits up to CLIENT_TIMEOUT for the outstanding ones */
+	public void run(int testTime) throws IOException {
+
+		selector = Selector.open();
+		long startTime = System.nanoTime();
+		long stopTime = startTime + testTime * 1000000000L;
+		if (traceStarts != null) stopTime = Math.min(stopTime, startTime + traceStarts[traceStarts.length - 1] + 1);
+		runTime = stopTime - startTime;
+
+		while (true) {
+			long now = System.nanoTime();
+
+			// Schedule every request whose start time has come, even if earlier ones are still waiting
+			long nextStart = getNextStart(startTime);
+			while (nextStart <= now && nextStart < stopTime) {
+				backlog.add(new Request(nextStart, requestMessages[nextFile]));
+				nextFile = (nextFile + 1) % requestMessages.length;
+				scheduled++;
+				nextStart = getNextStart(startTime);
+			}
+			while (!backlog.isEmpty() && outstanding.size() < maxConnections) {
+				startRequest(backlog.poll());
+			}
+			if (backlog.size() > maxBacklog) maxBacklog = backlog.size();
+
+			expireRequests(now);
+			if (now >= stopTime && backlog.isEmpty() && outstanding.isEmpty()) break;
+			if (now >= stopTime + CLIENT_TIMEOUT) {
+				timeouts += backlog.size();
+				backlog.clear();
+				break;
+			}
+
+			// Wait for I/O until the next request is due (at least 1 ms; select(0) would block forever)
+			long waitTime = (nextStart < stopTime) ? nextStart - now : stopTime + CLIENT_TIMEOUT - now;
+			selector.select(Math.max(1, waitTime / 1000000));
+			long eventTime = System.nanoTime();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				handleEvent(key, (Request) key.attachment(), eventTime);
+			}
+		}
+
+		for (Request request : outstanding) {
+			request.close();
+			timeouts++;
+		}
+		outstanding.clear();
+		selector.close();
+	}
+
+	/* Returns the scheduled start (in ns) of the next request; Long.MAX_VALUE after the end of a trace */
+	private long getNextStart(long startTime) {
+		if (traceStarts == null) return startTime + (long) (scheduled * 1e9 / rate);
+		return (scheduled < traceStarts.length) ? startTime + traceStarts[(int) scheduled] : Long.MAX_VALUE;
+	}
+
+	private void startRequest(Request request) {
+
+		try {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			request.channel = channel;
+			request.sendTime = System.nanoTime();
+			if (channel.connect(serverAddress)) {
+				channel.register(selector, SelectionKey.OP_WRITE, request);
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, request);
+			}
+			outstanding.add(request);
+		} catch (IOException e) {
+			Debug.DEBUG("IOException in connecting: " + e.getMessage());
+			request.close();
+			errors++;
+		}
+	}
+
+	private void handleEvent(SelectionKey key, Request request, long now) {
+
+		try {
+			if (key.isConnectable()) {
+				request.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()) {
+				request.channel.write(request.message);
+				if (!request.message.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+			} else if (key.isReadable()) {
+				readBuffer.clear();
+				int bytesRead = request.channel.read(readBuffer);
+				if (bytesRead > 0) {
+					readBuffer.flip();
+					request.received(readBuffer, now);
+					if (request.isComplete()) finishRequest(request, now, true);
+				} else if (bytesRead < 0) {
+					// HTTP/1.0: end of stream ends the reply; without any reply it is an error
+					finishRequest(request, now, request.statusCode != null);
+				}
+			}
+		} catch (IOException e) {
+			Debug.DEBUG("IOException in request: " + e.getMessage());
+			finishRequest(request, now, false);
+		}
+	}
+
+	private void finishRequest(Request request, long now, boolean success) {
+
+		request.close();
+		outstanding.remove(request);
+		bytesReceived += request.bytesReceived;
+		if (!success) {
+			errors++;
+			return;
+		}
+		completed++;
+		firstByteLatency.record(request.firstByteTime - request.scheduledTime);
+		lastByteLatency.record(now - request.scheduledTime);
+		uncorrectedLatency.record(now - request.sendTime);
+		Long count = statusCounts.get(request.statusCode);
+		statusCounts.put(request.statusCode, (count == null) ? 1 : count + 1);
+	}
+
+	/* Closes requests that have been outstanding for longer than CLIENT_TIMEOUT */
+	private void expireRequests(long now) {
+
+		Iterator<Request> iterator = outstanding.iterator();
+		while (iterator.hasNext()) {
+			Request request = iterator.next();
+			if (now - request.scheduledTime > CLIENT_TIMEOUT) {
+				request.close();
+				iterator.remove();
+				bytesReceived += request.bytesReceived;
+				timeouts++;
+			}
+		}
+	}
+
+	/* Prints the statistics; the first three lines are in SHTTPTestClient's format so that
+	 * benchmark.sh can pick them up the same way
+	 */
+	public void printStatistics() {
+
+		double seconds = Math.max(1, runTime) / 1e9;
+		System.out.println("========== Open-loop load statistics: " + loadName + " ==========");
+		System.out.println();
+
+		System.out.println("Total transaction throughput (#transactions per second): " + completed / seconds);
+		System.out.println("Data rate throughput (#megabytes per second): " + bytesReceived / seconds / 1048576);
+		if (completed != 0) System.out.println("Average wait time (ms): " + lastByteLatency.getMean() / 1e6);
+
+		System.out.println("Requests scheduled: " + scheduled + ", completed: " + completed + ", errors: " + errors
+				+ ", timeouts: " + timeouts + ", largest backlog: " + maxBacklog);
+		System.out.println("Bytes received: " + bytesReceived);
+		System.out.println("Replies by status: " + statusCounts);
+		System.out.println();
+		System.out.println("Latency (ms):                 p50 p90 p99 p99.9 max");
+		printLatency("Time to first byte", firstByteLatency);
+		printLatency("Time to last byte", lastByteLatency);
+		printLatency("Uncorrected (from send)", uncorrectedLatency);
+	}
+
+	private static void printLatency(String name, LatencyHistogram histogram) {
+		System.out.println(String.format(Locale.US, "%-29s %.3f %.3f %.3f %.3f %.3f", name + ":",
+				histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6, histogram.getPercentile(99) / 1e6,
+				histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+	}
+
+	/* Takes in args from terminal and returns a HashMap of < arg name , arg value >
+	 */
+	private static HashMap<String, String> parseArgs(String[] args) {
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			argsMap.put(args[i], args[i+1]);
+		}
+		return argsMap;
+	}
+
+	private static byte[] createRequestMessage(String url, String acceptEncoding) {
+		String headers = (acceptEncoding != null) ? "Accept-Encoding: " + acceptEncoding + "\r\n" : "";
+		return ("GET " + url + " HTTP/1.0\r\n" + headers + "\r\n").getBytes();
+	}
+
+	/* Takes in a filename and returns a list of files to request by
+	 * reading the file line by line
+	 */
+	private static ArrayList<String> getFilesToRequest(String fileName) throws IOException {
+
+		ArrayList<String> filesList = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (!line.isEmpty()) filesList.add(line);
+		}
+		br.close();
+		return filesList;
+	}
+
+	/* State of one request and its connection */
+	private static class Request {
+
+		private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+		private final long scheduledTime;	// in ns
+		private final ByteBuffer message;
+		private SocketChannel channel;
+		private long sendTime;
+		private long firstByteTime;
+		private long bytesReceived;
+
+		// Reply header, parsed as it arrives
+		private ByteArrayOutputStream header = new ByteArrayOutputStream();
+		private int headerEndMatched;	// # of bytes of HEADER_END seen in a row
+		private long headerLength = -1;	// -1 until the header is complete
+		private long contentLength = -1;	// -1 if not given
+		private String statusCode;
+
+		private Request(long scheduledTime, byte[] message) {
+			this.scheduledTime = scheduledTime;
+			this.message = ByteBuffer.wrap(message);
+		}
+
+		private void received(ByteBuffer buffer, long now) {
+			if (bytesReceived == 0) firstByteTime = now;
+			bytesReceived += buffer.remaining();
+			while (headerLength < 0 && buffer.hasRemaining()) {
+				byte b = buffer.get();
+				header.write(b);
+				headerEndMatched = (b == HEADER_END[headerEndMatched]) ? headerEndMatched + 1 : ((b == '\r') ? 1 : 0);
+				if (headerEndMatched == HEADER_END.length) parseHeader();
+			}
+		}
+
+		/* The status line gives the status code; Content-Length, if present, when the reply is complete */
+		private void parseHeader() {
+			String[] lines = header.toString().split("\r\n");
+			headerLength = header.size();
+			header = null;
+			String[] statusLine = lines[0].split(" ");
+			statusCode = (statusLine.length > 1) ? statusLine[1] : lines[0];
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Long.parseLong(lines[i].substring(colon + 1).trim());
+					} catch (NumberFormatException e) {
+						contentLength = -1;
+					}
+				}
+			}
+		}
+
+		/* Replies without a Content-Length end with the connection */
+		private boolean isComplete() {
+			return headerLength >= 0 && contentLength >= 0 && bytesReceived >= headerLength + contentLength;
+		}
+
+		private void close() {
+			if (channel == null) return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Debug.DEBUG("IOException in closing: " + e.getMessage());
+			}
+		}
+	}
+}
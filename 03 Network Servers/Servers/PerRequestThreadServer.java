@@ -18,10 +18,11 @@ public class PerRequestThreadServer {
 			try {
 				// accept connection from connection queue
 				Socket connectionSocket = serverSocket.accept();
+				long acceptTime = System.nanoTime();
 				//System.out.println("accepted connection from " + connectionSocket);
 
 				// Create a thread that will serve the request in back ground
-				ServeRequestThread requestThread = new ServeRequestThread(shttpServer, connectionSocket);
+				ServeRequestThread requestThread = new ServeRequestThread(shttpServer, connectionSocket, acceptTime);
 				requestThread.start();
 
 			} catch (IOException e) {
@@ -36,17 +37,19 @@ public class PerRequestThreadServer {
 
 		private Socket connectionSocket;
 		private SHTTPServer shttpServer;
+		private long acceptTime;
 
-		public ServeRequestThread(SHTTPServer shttpServer, Socket connectionSocket) {
+		public ServeRequestThread(SHTTPServer shttpServer, Socket connectionSocket, long acceptTime) {
 
 			this.connectionSocket = connectionSocket;
 			this.shttpServer = shttpServer;
+			this.acceptTime = acceptTime;
 		}
 
 		@Override
 		public void run() {
 
-			shttpServer.serveRequest(connectionSocket);
+			shttpServer.serveRequest(connectionSocket, acceptTime);
 		}
 
 	}
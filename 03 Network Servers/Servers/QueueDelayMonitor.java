@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A plugin for LoadBalancer that detects overload from queueing delay, the way CoDel does:
+ * the system is overloaded if even the request that waited least in the last interval waited
+ * longer than the target. A burst that fills the queue for a moment leaves some requests with
+ * a short wait and doesn't count; a standing queue delays every request and does.
+ * Reacts within an interval (100 ms), where the 1-minute load average takes minutes.
+ * Gets the sojourn times from the servers through SojournTimeListener.
+ */
+
+public class QueueDelayMonitor implements LoadBalancer, SojournTimeListener {
+
+	private static final long TARGET = 5 * 1000000L;		// 5 ms, in ns
+	private static final long INTERVAL = 100 * 1000000L;	// 100 ms, in ns
+	private static final long NO_SAMPLE = Long.MAX_VALUE;
+	private static final long SHED = Long.MAX_VALUE - 1;	// an interval in which requests were only shed
+
+	private AtomicLong intervalStart;		// in ns
+	private AtomicLong intervalMinSojourn;	// in ns; NO_SAMPLE until a request starts in the interval
+	private volatile long lastMinSojourn;	// of the last complete interval
+	private volatile boolean overloaded;
+
+	public QueueDelayMonitor() {
+		intervalStart = new AtomicLong(System.nanoTime());
+		intervalMinSojourn = new AtomicLong(NO_SAMPLE);
+		lastMinSojourn = NO_SAMPLE;
+		overloaded = false;
+	}
+
+	public void requestStarted(long sojournTime) {
+		rollInterval(System.nanoTime());
+		long min;
+		while (sojournTime < (min = intervalMinSojourn.get()) && !intervalMinSojourn.compareAndSet(min, sojournTime));
+	}
+
+	/* A shed request didn't wait at all, but only because the queue was full .. it must not pull the
+	 * minimum down; if every request of an interval is shed, the interval is over target
+	 */
+	public void requestShed() {
+		rollInterval(System.nanoTime());
+		intervalMinSojourn.compareAndSet(NO_SAMPLE, SHED);
+	}
+
+	public boolean isSystemOverloaded() {
+		rollInterval(System.nanoTime());
+		return overloaded;
+	}
+
+	/* Minimum sojourn time of the last complete interval in ns, or -1 if no request started in it */
+	public long getLastMinSojourn() {
+		long min = lastMinSojourn;
+		return (min == NO_SAMPLE) ? -1 : min;
+	}
+
+	/* Ends the current interval once it is over; only the thread that wins the CAS judges it */
+	private void rollInterval(long now) {
+		long start = intervalStart.get();
+		if (now - start < INTERVAL || !intervalStart.compareAndSet(start, now)) return;
+
+		long min = intervalMinSojourn.getAndSet(NO_SAMPLE);
+		lastMinSojourn = min;
+		// no request started in the interval: no new evidence either way
+		if (min != NO_SAMPLE) overloaded = (min > TARGET);
+	}
+}
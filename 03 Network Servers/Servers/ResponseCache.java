@@ -0,0 +1,112 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Cache of complete, ready-to-send replies (status line, headers and body) for files held in
+ * the FileCache, keyed by file path and a variant (e.g. keep-alive or close).
+ * The only part of a cached reply that changes between requests is the Date header: the first
+ * request in every new second copies the reply with the new date spliced in, every other request
+ * gets the same byte[] back, so a hit costs no header formatting and no body copy at all.
+ * Registered as a removal listener on the FileCache: whenever a file is evicted or replaced there,
+ * all replies rendered from it are dropped.
+ */
+
+public class ResponseCache implements CacheRemovalListener {
+
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, CachedReply>> entries;
+
+	// Statistics
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong invalidations;
+
+	public ResponseCache() {
+		entries = new ConcurrentHashMap<String, ConcurrentHashMap<String, CachedReply>>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		invalidations = new AtomicLong();
+	}
+
+	/* Returns the cached reply with its Date header set to date, or null if there is none
+	 * date is the value from ResponseHeaderWriter.getDate(), the same array all through a second
+	 * The returned array is shared and must not be modified
+	 */
+	public byte[] get(String key, String variant, byte[] date) {
+
+		ConcurrentHashMap<String, CachedReply> variants = entries.get(key);
+		CachedReply reply = (variants != null) ? variants.get(variant) : null;
+		if (reply == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		if (reply.date != date) {
+			CachedReply redated = reply.withDate(date);
+			// Only keep it if the entry hasn't been invalidated or replaced meanwhile
+			variants.replace(variant, reply, redated);
+			reply = redated;
+		}
+		return reply.message;
+	}
+
+	/* Caches a rendered reply whose Date header value is date and starts at dateOffset */
+	public void put(String key, String variant, byte[] message, int dateOffset, byte[] date) {
+
+		ConcurrentHashMap<String, CachedReply> variants = entries.get(key);
+		if (variants == null) {
+			variants = new ConcurrentHashMap<String, CachedReply>();
+			ConcurrentHashMap<String, CachedReply> existing = entries.putIfAbsent(key, variants);
+			if (existing != null) variants = existing;
+		}
+		variants.put(variant, new CachedReply(message, dateOffset, date));
+	}
+
+	/* Drops every reply rendered from the file */
+	public void entryRemoved(String key) {
+		if (entries.remove(key) != null) invalidations.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCache[files=" + entries.size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+				+ ", invalidations=" + invalidations.get() + "]";
+	}
+
+	/* An immutable rendered reply */
+	private static class CachedReply {
+
+		private final byte[] message;
+		private final int dateOffset;
+		private final byte[] date;
+
+		private CachedReply(byte[] message, int dateOffset, byte[] date) {
+			this.message = message;
+			this.dateOffset = dateOffset;
+			this.date = date;
+		}
+
+		/* Returns a copy of this reply with its Date header value replaced by date */
+		private CachedReply withDate(byte[] date) {
+			int oldDateLength = this.date.length;
+			byte[] newMessage = new byte[message.length - oldDateLength + date.length];
+			System.arraycopy(message, 0, newMessage, 0, dateOffset);
+			System.arraycopy(date, 0, newMessage, dateOffset, date.length);
+			System.arraycopy(message, dateOffset + oldDateLength, newMessage, dateOffset + date.length,
+					message.length - dateOffset - oldDateLength);
+			return new CachedReply(newMessage, dateOffset, date);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Writes reply headers into a caller-supplied ByteBuffer without allocating:
+ *  HTTP/1.0 <StatusCode>
+ *	Date: <date>
+ *	Server: <server name>
+ *	Content-Type: <type>
+ *	Content-Length: <length>
+ *	[Content-Encoding: gzip]
+ *	[Vary: Accept-Encoding]
+ *	[Content-Range: bytes <first>-<last>/<length>]	("*" instead of first-last in a 416 reply)
+ *	Connection: keep-alive | close
+ *	CRLF
+ * Status lines, header names, the server name and content types are encoded to bytes once and
+ * reused; the Date value is formatted once per second and shared by all requests in that second.
+ * Thread safe.
+ */
+
+public class ResponseHeaderWriter {
+
+	public static final String DATE_FORMAT = "E, dd MMM yyyy HH:mm:ss z";
+
+	// Content encodings: null for a resource with one representation (no Vary header),
+	// ENCODING_IDENTITY for the uncompressed variant of a resource that also has a gzip variant
+	public static final String ENCODING_IDENTITY = "identity";
+	public static final String ENCODING_GZIP = "gzip";
+
+	private static final byte[] DATE_LABEL = "\r\nDate: ".getBytes();
+	private static final byte[] CONTENT_TYPE_LABEL = "\r\nContent-Type: ".getBytes();
+	private static final byte[] CONTENT_LENGTH_LABEL = "\r\nContent-Length: ".getBytes();
+	private static final byte[] KEEP_ALIVE = "\r\nConnection: keep-alive\r\n\r\n".getBytes();
+	private static final byte[] CLOSE = "\r\nConnection: close\r\n\r\n".getBytes();
+	private static final byte[] NO_ENCODING = new byte[0];
+	private static final byte[] VARY = "\r\nVary: Accept-Encoding".getBytes();
+	private static final byte[] GZIP = "\r\nContent-Encoding: gzip\r\nVary: Accept-Encoding".getBytes();
+	private static final byte[] CONTENT_RANGE_LABEL = "\r\nContent-Range: bytes ".getBytes();
+	private static final int MAX_LENGTH_DIGITS = 19;
+
+	private byte[] serverLine;		// "\r\nServer: <server name>"
+
+	// Both only ever grow by a handful of entries (one per status code / file extension)
+	private ConcurrentHashMap<String, byte[]> statusLines;	// "HTTP/1.0 <StatusCode>"
+	private ConcurrentHashMap<String, byte[]> contentTypes;
+
+	private volatile CachedDate cachedDate;
+
+	public ResponseHeaderWriter(String serverName) {
+		serverLine = ("\r\nServer: " + serverName).getBytes();
+		statusLines = new ConcurrentHashMap<String, byte[]>();
+		contentTypes = new ConcurrentHashMap<String, byte[]>();
+		cachedDate = formatDate(System.currentTimeMillis() / 1000);
+	}
+
+	/* Returns the Date header value for the current second
+	 * The same array is returned all through a second, so callers may compare dates by identity;
+	 * it must not be modified
+	 */
+	public byte[] getDate() {
+		long second = System.currentTimeMillis() / 1000;
+		CachedDate date = cachedDate;
+		if (date.second != second) {
+			// the first request of a new second formats it; a race only formats it twice
+			date = formatDate(second);
+			cachedDate = date;
+		}
+		return date.value;
+	}
+
+	/* Writes the header with the date from getDate()
+	 * Returns the number of bytes written
+	 */
+	public int write(ByteBuffer buffer, String statusCode, String contentType, long contentLength, boolean keepAlive) {
+		return write(buffer, statusCode, getDate(), contentType, contentLength, keepAlive);
+	}
+
+	public int write(ByteBuffer buffer, String statusCode, byte[] date, String contentType, long contentLength,
+			boolean keepAlive) {
+		return write(buffer, statusCode, date, contentType, contentLength, null, null, keepAlive);
+	}
+
+	/* contentEncoding: null, ENCODING_IDENTITY or ENCODING_GZIP
+	 * range: the part of the body sent with a 206 reply, or the unsatisfiable range of a 416 reply; null = none
+	 */
+	public int write(ByteBuffer buffer, String statusCode, byte[] date, String contentType, long contentLength,
+			String contentEncoding, ByteRange range, boolean keepAlive) {
+
+		int start = buffer.position();
+		buffer.put(getStatusLine(statusCode));
+		buffer.put(DATE_LABEL);
+		buffer.put(date);
+		buffer.put(serverLine);
+		buffer.put(CONTENT_TYPE_LABEL);
+		buffer.put(getContentType(contentType));
+		buffer.put(CONTENT_LENGTH_LABEL);
+		putDecimal(buffer, contentLength);
+		buffer.put(getEncodingHeaders(contentEncoding));
+		if (range != null) putContentRange(buffer, range);
+		buffer.put(keepAlive ? KEEP_ALIVE : CLOSE);
+		return buffer.position() - start;
+	}
+
+	/* Returns the number of bytes write() puts for these values */
+	public int getHeaderLength(String statusCode, byte[] date, String contentType, long contentLength,
+			boolean keepAlive) {
+		return getHeaderLength(statusCode, date, contentType, contentLength, null, null, keepAlive);
+	}
+
+	public int getHeaderLength(String statusCode, byte[] date, String contentType, long contentLength,
+			String contentEncoding, ByteRange range, boolean keepAlive) {
+
+		return getStatusLine(statusCode).length + DATE_LABEL.length + date.length + serverLine.length
+				+ CONTENT_TYPE_LABEL.length + getContentType(contentType).length
+				+ CONTENT_LENGTH_LABEL.length + decimalLength(contentLength)
+				+ getEncodingHeaders(contentEncoding).length + ((range != null) ? getContentRangeLength(range) : 0)
+				+ (keepAlive ? KEEP_ALIVE.length : CLOSE.length);
+	}
+
+	/* Returns the index of the Date header value in a header written for statusCode */
+	public int getDateOffset(String statusCode) {
+		return getStatusLine(statusCode).length + DATE_LABEL.length;
+	}
+
+	private byte[] getStatusLine(String statusCode) {
+		byte[] statusLine = statusLines.get(statusCode);
+		if (statusLine == null) {
+			statusLine = ("HTTP/1.0 " + statusCode).getBytes();
+			statusLines.put(statusCode, statusLine);
+		}
+		return statusLine;
+	}
+
+	private static byte[] getEncodingHeaders(String contentEncoding) {
+		if (contentEncoding == null) return NO_ENCODING;
+		return contentEncoding.equals(ENCODING_GZIP) ? GZIP : VARY;
+	}
+
+	private static void putContentRange(ByteBuffer buffer, ByteRange range) {
+		buffer.put(CONTENT_RANGE_LABEL);
+		if (range.isSatisfiable()) {
+			putDecimal(buffer, range.getFirst());
+			buffer.put((byte) '-');
+			putDecimal(buffer, range.getLast());
+		} else {
+			buffer.put((byte) '*');
+		}
+		buffer.put((byte) '/');
+		putDecimal(buffer, range.getTotalLength());
+	}
+
+	private static int getContentRangeLength(ByteRange range) {
+		int rangeLength = range.isSatisfiable() ? decimalLength(range.getFirst()) + 1 + decimalLength(range.getLast()) : 1;
+		return CONTENT_RANGE_LABEL.length + rangeLength + 1 + decimalLength(range.getTotalLength());
+	}
+
+	private byte[] getContentType(String contentType) {
+		byte[] encoded = contentTypes.get(contentType);
+		if (encoded == null) {
+			encoded = contentType.getBytes();
+			contentTypes.put(contentType, encoded);
+		}
+		return encoded;
+	}
+
+	/* Writes the digits of value (>= 0) without creating a String */
+	private static void putDecimal(ByteBuffer buffer, long value) {
+		int digits = decimalLength(value);
+		int end = buffer.position() + digits;
+		for (int i = end - 1; i >= end - digits; i--) {
+			buffer.put(i, (byte) ('0' + (value % 10)));
+			value /= 10;
+		}
+		buffer.position(end);
+	}
+
+	private static int decimalLength(long value) {
+		int digits = 1;
+		for (long bound = 10; digits < MAX_LENGTH_DIGITS && value >= bound; bound *= 10) digits++;
+		return digits;
+	}
+
+	private static CachedDate formatDate(long second) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+		return new CachedDate(second, dateFormat.format(new Date(second * 1000)).getBytes());
+	}
+
+	private static class CachedDate {
+
+		private final long second;
+		private final byte[] value;
+
+		private CachedDate(long second, byte[] value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+}
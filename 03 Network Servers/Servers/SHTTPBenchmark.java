@@ -0,0 +1,240 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Microbenchmarks of the request path, run in-process without any clients or the gen tree:
+ *  - serveRequest(BufferedReader, ...) for a file whose reply is cached and for one that is read
+ *    from disk on every request (too large for the cache; run iterations / 100 times)
+ *  - parsing a request with HttpRequestParser, whole and split over small reads the way
+ *    AsyncServerReadWriteHandler feeds it from its inBuffer
+ *  - createReplyMessage
+ *  - FileCache get/put from -threads threads at once
+ * Each benchmark is warmed up first, then reports time and heap allocated per operation; the
+ * allocation is read from the per-thread counters of the HotSpot ThreadMXBean, so a change that
+ * adds garbage to the request path shows up as more bytes per operation.
+ *
+ * usage: java SHTTPBenchmark [-iterations <# of operations per benchmark>] [-threads <# of threads>]
+ */
+
+public class SHTTPBenchmark {
+
+	private static final String ITERATIONS_ARG = "-iterations";
+	private static final String THREADS_ARG = "-threads";
+
+	private static final int SMALL_FILE_SIZE = 4 * 1024;
+	private static final int LARGE_FILE_SIZE = 64 * 1024;
+	private static final int CACHE_SIZE = 32;		// in KB; holds the small file but not the large one
+	private static final int CACHE_KEYS = 256;		// # of distinct files in the contended cache
+	private static final int READ_SIZE = 16;		// in bytes; for parsing a request split over reads
+
+	private static final String REQUEST = "GET /small.html HTTP/1.1\r\nHost: localhost\r\n"
+			+ "User-Agent: SHTTPBenchmark\r\nAccept: */*\r\nConnection: keep-alive\r\n\r\n";
+
+	private static com.sun.management.ThreadMXBean threadBean;
+	private static volatile Object sink;	// keeps the JIT from dropping the work
+
+	public static void main(String[] args) {
+
+		HashMap<String, String> argsMap = parseArgs(args);
+		int iterations = (argsMap.get(ITERATIONS_ARG) != null) ? Integer.parseInt(argsMap.get(ITERATIONS_ARG)) : 200000;
+		int numThreads = (argsMap.get(THREADS_ARG) != null) ? Integer.parseInt(argsMap.get(THREADS_ARG)) : 4;
+
+		try {
+			threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		} catch (ClassCastException e) {
+			System.err.println("Per-thread allocation counters are not available on this JVM");
+			return;
+		}
+
+		final SHTTPServer shttpServer;
+		try {
+			File documentRoot = createDocumentRoot();
+			// Listen 0 binds an ephemeral port (and makes the constructor warn); no client ever connects
+			shttpServer = new SHTTPServer("SHTTPBenchmark", new String[] { "Listen", "0",
+					"DocumentRoot", documentRoot.getPath(), "CacheSize", "" + CACHE_SIZE, "ZeroCopyThreshold", "0" });
+		} catch (IOException e) {
+			System.err.println("IOException in creating document root: " + e.getMessage());
+			return;
+		}
+		final InetAddress localhost = InetAddress.getLoopbackAddress();
+
+		System.out.println("========== SHTTP benchmark: " + iterations + " operations per benchmark ==========");
+
+		run("serveRequest, cached reply", iterations, new Runnable() {
+			@Override
+			public void run() {
+				BufferedReader in = new BufferedReader(new StringReader("GET /small.html HTTP/1.0\r\n\r\n"));
+				sink = shttpServer.serveRequest(in, localhost, 80, false);
+			}
+		});
+		run("serveRequest, read from disk", Math.max(1, iterations / 100), new Runnable() {
+			@Override
+			public void run() {
+				BufferedReader in = new BufferedReader(new StringReader("GET /large.html HTTP/1.0\r\n\r\n"));
+				sink = shttpServer.serveRequest(in, localhost, 80, false);
+			}
+		});
+
+		final byte[] request = REQUEST.getBytes();
+		final HttpRequestParser parser = new HttpRequestParser();
+		run("parse request, one read", iterations, new Runnable() {
+			@Override
+			public void run() {
+				SHTTPRequest parsed = parser.parse(ByteBuffer.wrap(request));
+				if (!parsed.isValid()) throw new IllegalStateException("Request not valid");
+				sink = parsed.getDecodedUrl();
+			}
+		});
+		final ByteBuffer inBuffer = ByteBuffer.allocate(READ_SIZE);
+		run("parse request, " + READ_SIZE + " byte reads", iterations, new Runnable() {
+			@Override
+			public void run() {
+				SHTTPRequest parsed = null;
+				for (int offset = 0; offset < request.length; offset += READ_SIZE) {
+					inBuffer.clear();
+					inBuffer.put(request, offset, Math.min(READ_SIZE, request.length - offset));
+					inBuffer.flip();
+					parsed = parser.parse(inBuffer);
+				}
+				sink = parsed.getHeader("connection");
+			}
+		});
+
+		final byte[] body = new byte[SMALL_FILE_SIZE];
+		final byte[] date = "Sat, 01 Jan 2000 00:00:00 UTC".getBytes();
+		run("createReplyMessage", iterations, new Runnable() {
+			@Override
+			public void run() {
+				sink = shttpServer.createReplyMessage("200 OK", date, "html", body.length, true, body);
+			}
+		});
+
+		runCacheContention(iterations, numThreads);
+	}
+
+	/* Runs benchmark iterations times after as many warm-up runs and prints time and allocation per run */
+	private static void run(String name, int iterations, Runnable benchmark) {
+
+		for (int i = 0; i < iterations; i++) benchmark.run();	// warm up
+
+		long threadId = Thread.currentThread().getId();
+		long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < iterations; i++) benchmark.run();
+		long elapsed = System.nanoTime() - startTime;
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+		System.out.println();
+		System.out.println(name);
+		System.out.println("Time per operation (ns): " + elapsed / iterations);
+		System.out.println("Allocated per operation (bytes): " + allocated / iterations);
+	}
+
+	/* numThreads threads get (and on a miss put) files of a cache that holds about half of them */
+	private static void runCacheContention(final int iterations, int numThreads) {
+
+		final byte[] file = new byte[1024];
+		final String[] keys = new String[CACHE_KEYS];
+		for (int i = 0; i < keys.length; i++) keys[i] = "/file" + i;
+		final FileCache cache = new FileCache(CACHE_KEYS / 2 * file.length, new LRUCachePolicy());
+
+		final CountDownLatch warmedUp = new CountDownLatch(numThreads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		final long[] allocated = new long[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int threadIndex = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int key = threadIndex * 31 + 1;
+					for (int i = 0; i < iterations; i++) key = getOrPut(cache, keys, file, key);
+					warmedUp.countDown();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long threadId = Thread.currentThread().getId();
+					long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+					for (int i = 0; i < iterations; i++) key = getOrPut(cache, keys, file, key);
+					allocated[threadIndex] = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+					done.countDown();
+				}
+			});
+			threads[t].start();
+		}
+
+		long elapsed;
+		try {
+			warmedUp.await();
+			long startTime = System.nanoTime();
+			start.countDown();
+			done.await();
+			elapsed = System.nanoTime() - startTime;
+		} catch (InterruptedException e) {
+			System.err.println("Cache benchmark interrupted.");
+			return;
+		}
+
+		long totalAllocated = 0;
+		for (int t = 0; t < numThreads; t++) totalAllocated += allocated[t];
+		long operations = (long) iterations * numThreads;
+
+		System.out.println();
+		System.out.println("FileCache get/put, " + numThreads + " threads");
+		System.out.println("Throughput (#operations per second): " + (long) (operations / (elapsed / 1e9)));
+		System.out.println("Allocated per operation (bytes): " + totalAllocated / operations);
+		System.out.println("Hit ratio: " + cache.getHitRatio());
+	}
+
+	/* Returns the next key to use; keys are picked by a xorshift generator (no allocation), so that
+	 * with a cache of half the keys about half of the gets hit
+	 */
+	private static int getOrPut(FileCache cache, String[] keys, byte[] file, int key) {
+		String path = keys[(key & Integer.MAX_VALUE) % keys.length];
+		if (cache.get(path) == null) cache.put(path, file);
+		key ^= key << 13;
+		key ^= key >>> 17;
+		key ^= key << 5;
+		return key;
+	}
+
+	private static File createDocumentRoot() throws IOException {
+		File documentRoot = File.createTempFile("shttp", "root");
+		if (!documentRoot.delete() || !documentRoot.mkdir()) throw new IOException("Cannot create " + documentRoot);
+		documentRoot.deleteOnExit();
+		writeFile(new File(documentRoot, "small.html"), SMALL_FILE_SIZE);
+		writeFile(new File(documentRoot, "large.html"), LARGE_FILE_SIZE);
+		return documentRoot;
+	}
+
+	private static void writeFile(File file, int size) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] contents = new byte[size];
+		for (int i = 0; i < size; i++) contents[i] = (byte) ('a' + i % 26);
+		out.write(contents);
+		out.close();
+		file.deleteOnExit();
+	}
+
+	/* Takes in args from terminal and returns a HashMap of < arg name , arg value >
+	 */
+	private static HashMap<String, String> parseArgs(String[] args) {
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			argsMap.put(args[i], args[i+1]);
+		}
+		return argsMap;
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/*
+ * A request head parsed by HttpRequestParser: the raw bytes of the head (request line and header
+ * fields) and the offsets of the parts in it. The parts are byte slices of the head and are only
+ * turned into Strings when asked for.
+ * Request line: <method> <path>[?<query>] <version>
+ */
+
+public class SHTTPRequest {
+
+	private static final String CHARSET = "ISO-8859-1";	// one char per byte
+
+	private byte[] head;
+	private boolean valid;		// request line is of form: GET /<URL> <version>
+
+	// Offsets in head; start inclusive, end exclusive
+	private int methodStart, methodEnd;
+	private int pathStart, pathEnd;
+	private int queryStart, queryEnd;	// -1 if there is no query
+	private int versionStart, versionEnd;
+	private int[] headerOffsets;		// name start, name end, value start, value end of each field
+	private int headerCount;
+
+	SHTTPRequest(byte[] head, int[] requestLineOffsets, int[] headerOffsets, int headerCount) {
+		this.head = head;
+		methodStart = requestLineOffsets[0];
+		methodEnd = requestLineOffsets[1];
+		pathStart = requestLineOffsets[2];
+		pathEnd = requestLineOffsets[3];
+		queryStart = requestLineOffsets[4];
+		queryEnd = requestLineOffsets[5];
+		versionStart = requestLineOffsets[6];
+		versionEnd = requestLineOffsets[7];
+		this.headerOffsets = headerOffsets;
+		this.headerCount = headerCount;
+		valid = methodEnd > methodStart && pathEnd > pathStart && versionEnd > versionStart
+				&& sliceEquals(methodStart, methodEnd, "GET") && head[pathStart] == '/';
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	/* The raw bytes of the request head; the offsets below index into it */
+	public byte[] getHead() {
+		return head;
+	}
+
+	public int getPathStart() {
+		return pathStart;
+	}
+
+	public int getPathEnd() {
+		return pathEnd;
+	}
+
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	public String getMethod() {
+		return slice(methodStart, methodEnd);
+	}
+
+	public String getPath() {
+		return slice(pathStart, pathEnd);
+	}
+
+	/* Returns the query without the '?', or null if there is none */
+	public String getQuery() {
+		return (queryStart < 0) ? null : slice(queryStart, queryEnd);
+	}
+
+	public String getVersion() {
+		return slice(versionStart, versionEnd);
+	}
+
+	public boolean isHttp11() {
+		return sliceEquals(versionStart, versionEnd, "HTTP/1.1");
+	}
+
+	/* Returns the URL (path and query) with %-escapes decoded
+	 * Throws IllegalArgumentException if it contains an invalid escape or a NUL (%00), which
+	 * no file name has and which would reach cache keys that are no files (see GzipVariants)
+	 */
+	public String getDecodedUrl() {
+		int urlEnd = (queryStart < 0) ? pathEnd : queryEnd;
+		String decodedUrl;
+		try {
+			decodedUrl = URLDecoder.decode(slice(pathStart, urlEnd), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+		if (decodedUrl.indexOf('\0') >= 0) throw new IllegalArgumentException("NUL in URL");
+		return decodedUrl;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	public String getHeaderName(int i) {
+		return slice(headerOffsets[4 * i], headerOffsets[4 * i + 1]);
+	}
+
+	public String getHeaderValue(int i) {
+		return slice(headerOffsets[4 * i + 2], headerOffsets[4 * i + 3]);
+	}
+
+	/* Returns the value of the first header field called name (case insensitive), or null */
+	public String getHeader(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			int nameStart = headerOffsets[4 * i];
+			int nameEnd = headerOffsets[4 * i + 1];
+			if (nameEnd - nameStart != name.length()) continue;
+			boolean matches = true;
+			for (int j = 0; j < name.length() && matches; j++) {
+				matches = toLowerCase(head[nameStart + j]) == toLowerCase((byte) name.charAt(j));
+			}
+			if (matches) return getHeaderValue(i);
+		}
+		return null;
+	}
+
+	/* Returns true if the Accept-Encoding header lists encoding, or else "*", without "q=0"
+	 * e.g. "gzip, deflate" or "gzip;q=1.0, identity; q=0.5"
+	 */
+	public boolean acceptsEncoding(String encoding) {
+		String acceptEncoding = getHeader("Accept-Encoding");
+		if (acceptEncoding == null) return false;
+		boolean wildcard = false;
+		for (String coding : acceptEncoding.split(",")) {
+			int parameters = coding.indexOf(';');
+			String name = ((parameters >= 0) ? coding.substring(0, parameters) : coding).trim();
+			if (name.equalsIgnoreCase(encoding)) return isAcceptable(coding, parameters);
+			if (name.equals("*")) wildcard = isAcceptable(coding, parameters);
+		}
+		return wildcard;
+	}
+
+	/* A coding is acceptable unless its quality value is 0 */
+	private static boolean isAcceptable(String coding, int parameters) {
+		if (parameters < 0) return true;
+		String parameter = coding.substring(parameters + 1).trim().toLowerCase();
+		if (!parameter.startsWith("q=")) return true;
+		try {
+			return Double.parseDouble(parameter.substring(2).trim()) > 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private String slice(int start, int end) {
+		try {
+			return new String(head, start, end - start, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			return new String(head, start, end - start);
+		}
+	}
+
+	private boolean sliceEquals(int start, int end, String value) {
+		if (end - start != value.length()) return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (head[start + i] != value.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static byte toLowerCase(byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	@Override
+	public String toString() {
+		return slice(0, head.length);
+	}
+}
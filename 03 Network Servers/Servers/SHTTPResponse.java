@@ -0,0 +1,90 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/*
+ * A reply generated by SHTTPServer for a single request, together with
+ * whether the connection it came in on should be kept open for more requests
+ * If a body file or body buffer is set, message only holds the header and the caller
+ * has to send the body after it:
+ *  - bodyFile: bodyLength bytes from bodyPosition of a file to send straight from disk (e.g. with
+ *    FileChannel.transferTo, or a chunk at a time), so it is never held in memory as a whole
+ *  - bodyBuffer: a read-only buffer (e.g. a memory mapped file) to write as is
+ * A prerendered message is a complete reply shared with the ResponseCache: it must not be
+ * modified, but can be written as is instead of being copied first
+ * statusCode (e.g. "200 OK") is kept for the statistics of the server
+ */
+
+public class SHTTPResponse {
+
+	private byte[] message;
+	private boolean keepAlive;
+	private File bodyFile;
+	private long bodyPosition;
+	private long bodyLength;
+	private ByteBuffer bodyBuffer;
+	private boolean prerendered;
+	private String statusCode;
+
+	public SHTTPResponse(byte[] message, boolean keepAlive) {
+		this.message = message;
+		this.keepAlive = keepAlive;
+	}
+
+	public byte[] getMessage() {
+		return message;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public File getBodyFile() {
+		return bodyFile;
+	}
+
+	public long getBodyPosition() {
+		return bodyPosition;
+	}
+
+	public long getBodyLength() {
+		return bodyLength;
+	}
+
+	public void setBodyFile(File bodyFile, long bodyPosition, long bodyLength) {
+		this.bodyFile = bodyFile;
+		this.bodyPosition = bodyPosition;
+		this.bodyLength = bodyLength;
+	}
+
+	public ByteBuffer getBodyBuffer() {
+		return bodyBuffer;
+	}
+
+	public void setBodyBuffer(ByteBuffer bodyBuffer) {
+		this.bodyBuffer = bodyBuffer;
+	}
+
+	public boolean isPrerendered() {
+		return prerendered;
+	}
+
+	public void setPrerendered(boolean prerendered) {
+		this.prerendered = prerendered;
+	}
+
+	public String getStatusCode() {
+		return statusCode;
+	}
+
+	public void setStatusCode(String statusCode) {
+		this.statusCode = statusCode;
+	}
+
+	/* Returns the # of bytes of the whole reply: message and body */
+	public long getLength() {
+		long length = message.length;
+		if (bodyBuffer != null) length += bodyBuffer.remaining();
+		if (bodyFile != null) length += bodyLength;
+		return length;
+	}
+}
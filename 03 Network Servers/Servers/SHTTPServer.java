@@ -6,22 +6,22 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
-import java.sql.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Map;
 
 
-public class SHTTPServer {
+public class SHTTPServer implements SojournTimeListener {
 
 	private static final String ARG_CONFIG = "-config";
 
@@ -31,24 +31,82 @@ public class SHTTPServer {
 	private static final String CONFIG_CACHE_SIZE = "CacheSize";
 	private static final String CONFIG_INCOMPLETE_TIMEOUT = "IncompleteTimeout";
 	private static final String CONFIG_LOAD_BALANCER = "LoadBalancer";
+	private static final String CONFIG_CACHE_POLICY = "CachePolicy";
+	private static final String CONFIG_CACHE_ADMISSION = "CacheAdmission";
+
+	private static final String CACHE_ADMISSION_TINY_LFU = "TinyLFU";
+	private static final String CONFIG_KEEP_ALIVE_TIMEOUT = "KeepAliveTimeout";
+	private static final String CONFIG_MAX_KEEP_ALIVE_REQUESTS = "MaxKeepAliveRequests";
+	private static final String CONFIG_ZERO_COPY_THRESHOLD = "ZeroCopyThreshold";
+	private static final String CONFIG_BUFFER_POOL_SIZE = "BufferPoolSize";
+	private static final String CONFIG_MAPPED_CACHE_SIZE = "MappedCacheSize";
+	private static final String CONFIG_DISPATCHER_SELECTION = "DispatcherSelection";
+	private static final String CONFIG_WORKER_POOL_SIZE = "WorkerPoolSize";
+	private static final String CONFIG_WORKER_QUEUE_SIZE = "WorkerQueueSize";
+	private static final String CONFIG_WRITE_TIMEOUT = "WriteTimeout";
+	private static final String CONFIG_QUEUE_CAPACITY = "QueueCapacity";
+	private static final String CONFIG_QUEUE_OVERFLOW = "QueueOverflow";
+	private static final String CONFIG_METADATA_CACHE_TTL = "MetadataCacheTTL";
+	private static final String CONFIG_METADATA_CACHE_SIZE = "MetadataCacheSize";
+	private static final String CONFIG_WATCH_DOCUMENT_ROOT = "WatchDocumentRoot";
+	private static final String CONFIG_COMPRESSION_POOL_SIZE = "CompressionPoolSize";
+
+	private static final String WATCH_OFF = "Off";
 
 	private final String STATUS_OK = "200 OK";
 	private final String STATUS_ERROR = "400 ERROR";
 	private final String STATUS_UNMODIFIED = "304 UNMODIFIED";
+	private final String STATUS_PARTIAL = "206 PARTIAL CONTENT";
+	private final String STATUS_UNSATISFIABLE = "416 RANGE NOT SATISFIABLE";
 	private final String STATUS_ACCEPTING = "200 ACCEPTING";
 	private final String STATUS_OVERLOADED = "503 OVERLOADED";
+
+	private static final int WRITE_CHUNK_SIZE = 64 * 1024;	// for copying body buffers and files to a socket stream
+	private static final int READ_CHUNK_SIZE = 64 * 1024;	// for reading files into memory
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;	// largest file that can be read into a byte[]
+	private static final int IN_BUFFER_SIZE = 4096;			// for reading requests from a socket stream
+	private static final int COMPRESSION_QUEUE_SIZE = 256;	// max # of files waiting to be compressed
+
+	// Returned by serveRequest when blocking is not allowed and the request can't be served without it
+	public static final SHTTPResponse DEFERRED = new SHTTPResponse(new byte[0], false);
 	
 	private LoadBalancer loadBalancer = null;
+	private SojournTimeListener sojournTimeListener = null;	// the loadBalancer, if it wants sojourn times
+	private LoadReporter loadReporter = null;				// the loadBalancer, if it reports a load score
+	private ServerLoad serverLoad;
+	private ServerStats serverStats;
+	private CachePolicy cachePolicy = null;
+	private String cacheAdmission = null;
 
 	private int serverPort = 0;
 	private String documentRoot = null;
 	private int maxCacheSize = 0;		// in bytes
 	private int numThreads = 0;
 	private int incompleteTimeout = 3000;	// 3 s = default
+	private int keepAliveTimeout = 0;		// in ms; 0 = persistent connections disabled
+	private int writeTimeout = 30000;		// in ms; max time AsyncServer waits for a client to accept more of a reply
+	private int maxKeepAliveRequests = 100;	// max # of requests served on one connection
+	private long zeroCopyThreshold = 256 * 1024;	// in bytes; 0 = zero-copy responses disabled
+	private long bufferPoolSize = 64 * 1024 * 1024;	// in bytes; budget of AsyncServer's direct buffers
+	private long maxMappedCacheSize = 0;	// in bytes; 0 = no off-heap tier
+	private String dispatcherSelection = null;	// how AsyncServer shards connections; null = round-robin
+	private int workerPoolSize = 16;		// AsyncServer threads for blocking work; 0 = serve on the dispatchers
+	private int workerQueueSize = 1024;		// max # of requests waiting for a worker
+	private int queueCapacity = 1024;		// max # of connections waiting in a shared-queue server
+	private String queueOverflow = BoundedSocketQueue.OVERFLOW_REJECT;	// what to do with a connection when it is full
+	private long metadataCacheTTL = 1000;	// in ms; how long file metadata is trusted; 0 = stat on every request
+	private int metadataCacheSize = 10000;	// max # of paths with cached metadata
+	private String watchDocumentRoot = null;	// "Off" = cached files are never invalidated
+	private int compressionPoolSize = 1;	// threads making gzip variants; 0 = gzip disabled
 	private ServerSocket serverSocket = null;
 	private String SERVER_NAME;
-	private int currentCacheSize = 0;
-	private Hashtable<String, byte[]> cache;
+	private FileCache cache;
+	private MappedFileCache mappedCache;	// off-heap tier for files of at least zeroCopyThreshold bytes
+	private ResponseCache responseCache;	// complete replies for files in the (heap) cache
+	private ResponseHeaderWriter headerWriter;
+	private FileMetadataCache metadataCache;	// exists / type / size / mtime per path, including missing paths
+	private DocumentRootWatcher documentRootWatcher;	// null = not watching
+	private GzipVariants gzipVariants;		// null = responses are never compressed
 
 
 	public SHTTPServer(String serverName, String[] commandLineArgs) {
@@ -57,8 +115,49 @@ public class SHTTPServer {
 		boolean configSetup = setupConfigurations(commandLineArgs);
 		if (!configSetup) System.err.println("WARNING: Configurations may not have been setup correctly.");
 
-		// Initialize an empty cache
-		cache = new Hashtable<String, byte[]>();
+		// Initialize an empty cache .. evicts least recently used files unless another CachePolicy is configured
+		if (cachePolicy == null) cachePolicy = new LRUCachePolicy();
+		FrequencySketch admissionSketch = null;
+		if (CACHE_ADMISSION_TINY_LFU.equalsIgnoreCase(cacheAdmission)) {
+			admissionSketch = FrequencySketch.forCacheSize(maxCacheSize);
+		}
+		cache = new FileCache(maxCacheSize, cachePolicy, admissionSketch);
+		headerWriter = new ResponseHeaderWriter(SERVER_NAME);
+		responseCache = new ResponseCache();
+		cache.addRemovalListener(responseCache);
+		metadataCache = new FileMetadataCache(metadataCacheTTL, metadataCacheSize);
+		if (loadBalancer instanceof SojournTimeListener) sojournTimeListener = (SojournTimeListener) loadBalancer;
+		serverLoad = new ServerLoad(cache, numThreads);
+		if (loadBalancer instanceof LoadReporter) {
+			loadReporter = (LoadReporter) loadBalancer;
+			loadReporter.setServerLoad(serverLoad);
+		}
+		if (maxMappedCacheSize > 0 && zeroCopyThreshold > 0) {
+			mappedCache = new MappedFileCache(maxMappedCacheSize, new LRUCachePolicy());
+		}
+		serverStats = new ServerStats(SERVER_NAME);
+		serverStats.addComponent("fileCache", cache);
+		serverStats.addComponent("responseCache", responseCache);
+		if (mappedCache != null) serverStats.addComponent("mappedCache", mappedCache);
+		serverStats.addComponent("metadataCache", metadataCache);
+
+		// Drop files from the caches as soon as they change on disk
+		if (!WATCH_OFF.equalsIgnoreCase(watchDocumentRoot) && documentRoot != null) {
+			try {
+				documentRootWatcher = new DocumentRootWatcher(documentRoot, cache, mappedCache, metadataCache);
+				documentRootWatcher.start();
+				serverStats.addComponent("documentRootWatcher", documentRootWatcher);
+			} catch (IOException e) {
+				System.err.println("IOException in watching document root; cached files won't be invalidated: " + e.getMessage());
+			}
+		}
+
+		// Compress text files in the background for clients that accept gzip .. the variants are kept
+		// in the file cache, so there are none without one
+		if (compressionPoolSize > 0 && maxCacheSize > 0) {
+			gzipVariants = new GzipVariants(cache, documentRootWatcher, compressionPoolSize, COMPRESSION_QUEUE_SIZE);
+			serverStats.addComponent("gzipVariants", gzipVariants);
+		}
 		
 		if (serverName.equals("AsyncServer")) return; // AsyncServer doesn't need to be setup with a port
 		
@@ -86,10 +185,86 @@ public class SHTTPServer {
 		return maxCacheSize / 1024;
 	}
 	
+	public FileCache getCache() {
+		return cache;
+	}
+
+	public MappedFileCache getMappedCache() {
+		return mappedCache;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
 	public int getIncompletTimeout() {
 		return incompleteTimeout;
 	}
 
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	public int getMaxKeepAliveRequests() {
+		return maxKeepAliveRequests;
+	}
+
+	public long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	public String getDispatcherSelection() {
+		return dispatcherSelection;
+	}
+
+	public int getWorkerPoolSize() {
+		return workerPoolSize;
+	}
+
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public String getQueueOverflow() {
+		return queueOverflow;
+	}
+
+	public ServerLoad getServerLoad() {
+		return serverLoad;
+	}
+
+	public ServerStats getServerStats() {
+		return serverStats;
+	}
+
+	/* Reports that a request queued since enqueueTime (System.nanoTime()) starts being served */
+	public void recordSojournTime(long enqueueTime) {
+		recordSojournTime(enqueueTime, System.nanoTime());
+	}
+
+	public void recordSojournTime(long enqueueTime, long startTime) {
+		requestStarted(startTime - enqueueTime);
+	}
+
+	/* Records the sojourn time in the stats and passes it on to the loadBalancer if it wants it */
+	public void requestStarted(long sojournTime) {
+		serverStats.recordPhase(ServerStats.PHASE_QUEUE, sojournTime);
+		if (sojournTimeListener != null) sojournTimeListener.requestStarted(sojournTime);
+	}
+
+	/* Passes a request rejected because the queue was full on to the loadBalancer if it wants it */
+	public void requestShed() {
+		if (sojournTimeListener != null) sojournTimeListener.requestShed();
+	}
+
 	public ServerSocket getServerSocket() {
 		return serverSocket;
 	}
@@ -122,6 +297,62 @@ public class SHTTPServer {
 		String argIncompleteTimeout = argsList.get(CONFIG_INCOMPLETE_TIMEOUT);
 		if (argIncompleteTimeout != null && !argIncompleteTimeout.isEmpty()) 
 			incompleteTimeout = (Integer.parseInt(argIncompleteTimeout)) * 1000; // in ms
+		String argKeepAliveTimeout = argsList.get(CONFIG_KEEP_ALIVE_TIMEOUT);
+		if (argKeepAliveTimeout != null && !argKeepAliveTimeout.isEmpty())
+			keepAliveTimeout = (Integer.parseInt(argKeepAliveTimeout)) * 1000; // in ms
+		String argWriteTimeout = argsList.get(CONFIG_WRITE_TIMEOUT);
+		if (argWriteTimeout != null && !argWriteTimeout.isEmpty())
+			writeTimeout = (Integer.parseInt(argWriteTimeout)) * 1000; // in ms
+		String argMaxKeepAliveRequests = argsList.get(CONFIG_MAX_KEEP_ALIVE_REQUESTS);
+		if (argMaxKeepAliveRequests != null && !argMaxKeepAliveRequests.isEmpty())
+			maxKeepAliveRequests = Integer.parseInt(argMaxKeepAliveRequests);
+		String argZeroCopyThreshold = argsList.get(CONFIG_ZERO_COPY_THRESHOLD);
+		if (argZeroCopyThreshold != null && !argZeroCopyThreshold.isEmpty())
+			zeroCopyThreshold = (Long.parseLong(argZeroCopyThreshold)) * 1024; // in bytes
+		String argBufferPoolSize = argsList.get(CONFIG_BUFFER_POOL_SIZE);
+		if (argBufferPoolSize != null && !argBufferPoolSize.isEmpty())
+			bufferPoolSize = (Long.parseLong(argBufferPoolSize)) * 1024; // in bytes
+		String argMappedCacheSize = argsList.get(CONFIG_MAPPED_CACHE_SIZE);
+		if (argMappedCacheSize != null && !argMappedCacheSize.isEmpty())
+			maxMappedCacheSize = (Long.parseLong(argMappedCacheSize)) * 1024; // in bytes
+		String argDispatcherSelection = argsList.get(CONFIG_DISPATCHER_SELECTION);
+		if (argDispatcherSelection != null && !argDispatcherSelection.isEmpty())
+			dispatcherSelection = argDispatcherSelection;
+		String argWorkerPoolSize = argsList.get(CONFIG_WORKER_POOL_SIZE);
+		if (argWorkerPoolSize != null && !argWorkerPoolSize.isEmpty())
+			workerPoolSize = Integer.parseInt(argWorkerPoolSize);
+		String argWorkerQueueSize = argsList.get(CONFIG_WORKER_QUEUE_SIZE);
+		if (argWorkerQueueSize != null && !argWorkerQueueSize.isEmpty())
+			workerQueueSize = Integer.parseInt(argWorkerQueueSize);
+		String argQueueCapacity = argsList.get(CONFIG_QUEUE_CAPACITY);
+		if (argQueueCapacity != null && !argQueueCapacity.isEmpty())
+			queueCapacity = Integer.parseInt(argQueueCapacity);
+		String argQueueOverflow = argsList.get(CONFIG_QUEUE_OVERFLOW);
+		if (argQueueOverflow != null && !argQueueOverflow.isEmpty())
+			queueOverflow = argQueueOverflow;
+		String argMetadataCacheTTL = argsList.get(CONFIG_METADATA_CACHE_TTL);
+		if (argMetadataCacheTTL != null && !argMetadataCacheTTL.isEmpty())
+			metadataCacheTTL = Long.parseLong(argMetadataCacheTTL);
+		String argMetadataCacheSize = argsList.get(CONFIG_METADATA_CACHE_SIZE);
+		if (argMetadataCacheSize != null && !argMetadataCacheSize.isEmpty())
+			metadataCacheSize = Integer.parseInt(argMetadataCacheSize);
+		String argWatchDocumentRoot = argsList.get(CONFIG_WATCH_DOCUMENT_ROOT);
+		if (argWatchDocumentRoot != null && !argWatchDocumentRoot.isEmpty())
+			watchDocumentRoot = argWatchDocumentRoot;
+		String argCompressionPoolSize = argsList.get(CONFIG_COMPRESSION_POOL_SIZE);
+		if (argCompressionPoolSize != null && !argCompressionPoolSize.isEmpty())
+			compressionPoolSize = Integer.parseInt(argCompressionPoolSize);
+		String argCachePolicy = argsList.get(CONFIG_CACHE_POLICY);
+		if (argCachePolicy != null && !argCachePolicy.isEmpty()) {
+			try {
+				cachePolicy = (CachePolicy) Class.forName(argCachePolicy).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				System.err.println("Error in load CachePolicy class: " + argCachePolicy + ": " + e.getMessage());
+			}
+		}
+		String argCacheAdmission = argsList.get(CONFIG_CACHE_ADMISSION);
+		if (argCacheAdmission != null && !argCacheAdmission.isEmpty())
+			cacheAdmission = argCacheAdmission;
 		String argLoadBalancer = argsList.get(CONFIG_LOAD_BALANCER);
 		if (argLoadBalancer != null && !argLoadBalancer.isEmpty()) {
 			try {
@@ -163,13 +394,51 @@ public class SHTTPServer {
 				} else if (splitString[0].equals("ThreadPoolSize")) {
 					numThreads = Integer.parseInt(splitString[1]);
 				} else if (splitString[0].equals("IncompleteTimeout")) {
-					incompleteTimeout = Integer.parseInt(splitString[1]);
+					incompleteTimeout = (Integer.parseInt(splitString[1])) * 1000; // in ms
+				} else if (splitString[0].equals("WriteTimeout")) {
+					writeTimeout = (Integer.parseInt(splitString[1])) * 1000; // in ms
+				} else if (splitString[0].equals("KeepAliveTimeout")) {
+					keepAliveTimeout = (Integer.parseInt(splitString[1])) * 1000; // in ms
+				} else if (splitString[0].equals("MaxKeepAliveRequests")) {
+					maxKeepAliveRequests = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("ZeroCopyThreshold")) {
+					zeroCopyThreshold = (Long.parseLong(splitString[1])) * 1024; // in bytes
+				} else if (splitString[0].equals("MappedCacheSize")) {
+					maxMappedCacheSize = (Long.parseLong(splitString[1])) * 1024; // in bytes
+				} else if (splitString[0].equals("BufferPoolSize")) {
+					bufferPoolSize = (Long.parseLong(splitString[1])) * 1024; // in bytes
+				} else if (splitString[0].equals("WorkerPoolSize")) {
+					workerPoolSize = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("WorkerQueueSize")) {
+					workerQueueSize = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("QueueCapacity")) {
+					queueCapacity = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("QueueOverflow")) {
+					queueOverflow = splitString[1];
+				} else if (splitString[0].equals("MetadataCacheTTL")) {
+					metadataCacheTTL = Long.parseLong(splitString[1]);	// in ms
+				} else if (splitString[0].equals("MetadataCacheSize")) {
+					metadataCacheSize = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("WatchDocumentRoot")) {
+					watchDocumentRoot = splitString[1];
+				} else if (splitString[0].equals("CompressionPoolSize")) {
+					compressionPoolSize = Integer.parseInt(splitString[1]);
+				} else if (splitString[0].equals("DispatcherSelection")) {
+					dispatcherSelection = splitString[1];
 				} else if (splitString[0].equals("LoadBalancer")) {
 					try {
 						loadBalancer = (LoadBalancer) Class.forName(splitString[1]).newInstance();
 					} catch (Exception e) {
 						System.err.println("Error in load LoadBalancer class: " + splitString[1] + ": " + e.getMessage());
 					}
+				} else if (splitString[0].equals("CacheAdmission")) {
+					cacheAdmission = splitString[1];
+				} else if (splitString[0].equals("CachePolicy")) {
+					try {
+						cachePolicy = (CachePolicy) Class.forName(splitString[1]).getDeclaredConstructor().newInstance();
+					} catch (Exception e) {
+						System.err.println("Error in load CachePolicy class: " + splitString[1] + ": " + e.getMessage());
+					}
 				}
 			}
 		} catch (Exception e) {
@@ -186,69 +455,304 @@ public class SHTTPServer {
 
 	}
 
+	/* Serves a connection accepted at acceptTime (System.nanoTime()) after it waited for a thread */
+	public void serveRequest(Socket connectionSocket, long acceptTime) {
+
+		recordSojournTime(acceptTime);
+		serveRequest(connectionSocket);
+	}
+
 	public void serveRequest(Socket connectionSocket) {
 		try {
-			// create read stream to get input
-			BufferedReader inFromClient = 
-					new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
+			// Requests are parsed straight from the bytes read .. the buffer and the parser are
+			// kept across requests so pipelined requests are not lost
+			InputStream inFromClient = connectionSocket.getInputStream();
+			ByteBuffer inBuffer = ByteBuffer.allocate(IN_BUFFER_SIZE);
+			inBuffer.flip();	// nothing read yet
+			HttpRequestParser parser = new HttpRequestParser();
+			DataOutputStream outToClient = 	new DataOutputStream(connectionSocket.getOutputStream());
 			InetAddress clientAddress = connectionSocket.getLocalAddress();
 			int clientPort = connectionSocket.getLocalPort();
 
-			// send reply
-			byte[] replyMessage = serveRequest(inFromClient, clientAddress, clientPort);
-			if (replyMessage != null) {
-				DataOutputStream outToClient = 	new DataOutputStream(connectionSocket.getOutputStream());
-				outToClient.write(replyMessage);
+			// Serve requests on this connection until the client or the server asks to close it
+			int requestsServed = 0;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				requestsServed++;
+				SHTTPRequest request = readRequest(parser, inFromClient, inBuffer);
+				if (request == null) break;
+				SHTTPResponse response;
+				long serviceStart = System.nanoTime();
+				serverLoad.requestStarted();
+				try {
+					response = serveRequest(request, clientAddress, clientPort,
+							requestsServed < maxKeepAliveRequests, true, true);
+					if (response == null) break;
+
+					// send reply .. large files are streamed from disk rather than read into memory
+					long length = response.getLength();
+					long writeStart = System.nanoTime();
+					outToClient.write(response.getMessage());
+					if (response.getBodyBuffer() != null) writeBodyBuffer(response.getBodyBuffer(), outToClient);
+					if (response.getBodyFile() != null) writeBodyFile(response, outToClient);
+					outToClient.flush();
+					long writeEnd = System.nanoTime();
+					serverStats.recordPhase(ServerStats.PHASE_WRITE, writeEnd - writeStart);
+					serverStats.recordResponse(response.getStatusCode(), writeEnd - serviceStart, length);
+				} finally {
+					serverLoad.requestFinished();
+				}
+
+				// Wait at most keepAliveTimeout for the next request on a persistent connection
+				keepAlive = response.isKeepAlive();
+				if (keepAlive) connectionSocket.setSoTimeout(keepAliveTimeout);
 			}
 
-			connectionSocket.close();
-			
 		} catch (IOException e) {
 			//System.err.println("IOException in serving connection socket request: " + e.getMessage());
 			//e.printStackTrace();
+		} finally {
+			try {
+				connectionSocket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/* Reads from in until the parser has a complete request
+	 * Returns null at the end of the stream or if the request is too large
+	 */
+	private SHTTPRequest readRequest(HttpRequestParser parser, InputStream in, ByteBuffer inBuffer) throws IOException {
+
+		long parseTime = 0;
+		while (true) {
+			long parseStart = System.nanoTime();
+			SHTTPRequest request = parser.parse(inBuffer);
+			parseTime += System.nanoTime() - parseStart;
+			if (request != null) {
+				serverStats.recordPhase(ServerStats.PHASE_PARSE, parseTime);
+				return request;
+			}
+			if (parser.isError()) return null;
+
+			// The parser has taken all buffered bytes; read some more
+			int readBytes = in.read(inBuffer.array(), 0, inBuffer.capacity());
+			if (readBytes == -1) return parser.finish();
+			inBuffer.clear();
+			inBuffer.limit(readBytes);
 		}
 	}
 
+	/* Reads a request head line by line, for callers that only have a reader
+	 * Returns null at the end of the stream or if the request is too large
+	 */
+	private SHTTPRequest readRequest(BufferedReader inFromClient) throws IOException {
+
+		HttpRequestParser parser = new HttpRequestParser();
+		String line;
+		while ((line = inFromClient.readLine()) != null) {
+			SHTTPRequest request = parser.parse(ByteBuffer.wrap((line + "\r\n").getBytes()));
+			if (request != null) return request;
+			if (parser.isError()) return null;
+		}
+		return parser.finish();
+	}
+
 	public byte[] serveRequest(BufferedReader inFromClient, InetAddress clientAddress, int clientPort) {
 
+		SHTTPResponse response = serveRequest(inFromClient, clientAddress, clientPort, false);
+		if (response == null) return null;
+		if (response.getBodyBuffer() == null) return response.getMessage();
+
+		// Append the off-heap body to get the whole reply
+		ByteArrayOutputStream replyBuffer = new ByteArrayOutputStream();
+		try {
+			replyBuffer.write(response.getMessage());
+			writeBodyBuffer(response.getBodyBuffer(), replyBuffer);
+		} catch (IOException e) {
+			System.err.println("Error in creating reply message: " + e.getMessage());
+		}
+		return replyBuffer.toByteArray();
+	}
+
+	/* Copies a (possibly off-heap) body buffer to a stream a chunk at a time */
+	private void writeBodyBuffer(ByteBuffer bodyBuffer, OutputStream out) throws IOException {
+
+		byte[] chunk = new byte[Math.min(bodyBuffer.remaining(), WRITE_CHUNK_SIZE)];
+		while (bodyBuffer.hasRemaining()) {
+			int chunkSize = Math.min(chunk.length, bodyBuffer.remaining());
+			bodyBuffer.get(chunk, 0, chunkSize);
+			out.write(chunk, 0, chunkSize);
+		}
+	}
+
+	/* Copies the body file of response to a stream a chunk at a time, so only one chunk of it is in
+	 * memory at once .. throws IOException if the file got shorter since the header was made
+	 */
+	private void writeBodyFile(SHTTPResponse response, OutputStream out) throws IOException {
+
+		long position = response.getBodyPosition();
+		long remaining = response.getBodyLength();
+		FileChannel channel = new FileInputStream(response.getBodyFile()).getChannel();
+		try {
+			ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(remaining, WRITE_CHUNK_SIZE));
+			while (remaining > 0) {
+				chunk.clear();
+				chunk.limit((int) Math.min(chunk.capacity(), remaining));
+				int readBytes = channel.read(chunk, position);
+				if (readBytes == -1) throw new IOException("File shrank while being sent: " + response.getBodyFile());
+				out.write(chunk.array(), 0, readBytes);
+				position += readBytes;
+				remaining -= readBytes;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	public SHTTPResponse serveRequest(BufferedReader inFromClient, InetAddress clientAddress, int clientPort,
+			boolean keepAliveAllowed) {
+
+		SHTTPRequest request;
+		try {
+			request = readRequest(inFromClient);
+		} catch (IOException e) {
+			return null;
+		}
+		if (request == null) return null;	// connection closed by client
+		return serveRequest(request, clientAddress, clientPort, keepAliveAllowed, false, true);
+	}
+
+	/* Returns a 503 reply for a request that is shed without being served; closes the connection */
+	public SHTTPResponse createOverloadedResponse() {
+
+		byte[] date = headerWriter.getDate();
+		SHTTPResponse response =
+				new SHTTPResponse(createReplyMessage(STATUS_OVERLOADED, date, "EMPTY", 0, false, null), false);
+		response.setStatusCode(STATUS_OVERLOADED);
+		return response;
+	}
+
+	/* Hands an accepted connection to the workers of a shared-queue server through queue
+	 * If the queue is full, waits for room (QueueOverflow Block) or replies 503 and closes the
+	 * connection (QueueOverflow Reject)
+	 */
+	public void enqueueConnection(BoundedSocketQueue queue, Socket connectionSocket) {
+
+		if (BoundedSocketQueue.OVERFLOW_BLOCK.equalsIgnoreCase(queueOverflow)) {
+			try {
+				queue.put(connectionSocket);
+			} catch (InterruptedException e) {
+				System.err.println("Waiting for room in connection queue interrupted.");
+				closeConnection(connectionSocket);
+			}
+			return;
+		}
+
+		if (!queue.offer(connectionSocket)) {
+			Debug.DEBUG("Connection queue full; rejected " + connectionSocket);
+			requestShed();
+			try {
+				DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+				outToClient.write(createOverloadedResponse().getMessage());
+				outToClient.flush();
+			} catch (IOException e) {
+				// the connection is closed anyway
+			}
+			closeConnection(connectionSocket);
+		}
+	}
+
+	private void closeConnection(Socket connectionSocket) {
+		try {
+			connectionSocket.close();
+		} catch (IOException e) {
+			System.err.println("IOException in closing connection: " + e.getMessage());
+		}
+	}
+
+	/* Serves a request parsed by HttpRequestParser
+	 * keepAliveAllowed is false if the connection has to be closed after this request no matter
+	 * what the client asked for (e.g. MaxKeepAliveRequests has been reached)
+	 * zeroCopyAllowed is true if the caller can send a file body straight from disk: files of at
+	 * least ZeroCopyThreshold bytes are then returned as a header-only message plus the file to send
+	 * blockingAllowed is false if the caller must not block (e.g. a Dispatcher thread): only
+	 * requests that need no disk access or process are served then, DEFERRED is returned otherwise
+	 * and the caller has to serve the request again from a thread that may block
+	 * A "Range: bytes=" request for a static file gets only that part of it (206), or 416 if the
+	 * range lies past its end
+	 * Returns null if the request is not valid
+	 */
+	public SHTTPResponse serveRequest(SHTTPRequest request, InetAddress clientAddress, int clientPort,
+			boolean keepAliveAllowed, boolean zeroCopyAllowed, boolean blockingAllowed) {
+
 		byte[] replyMessage = null;
+		String replyStatus = null;
+		boolean keepAlive = false;
+		File bodyFile = null;
+		long bodyFilePosition = 0;
+		long bodyFileLength = 0;
+		ByteBuffer bodyBuffer = null;
 		try {
-			// Read in a valid get request
-			String clientGetRequest = inFromClient.readLine();
-			if (!isClientGetRequestValid(clientGetRequest)) {
-				System.err.println("Invalid get request: " + clientGetRequest);
+			// Only GET requests for URLs starting with "/" are served
+			if (!request.isValid()) {
+				System.err.println("Invalid get request: " + request.toString().trim());
 				return null;
 			}
 			
 			// URL might contain characters like %20 for space
-			String urlRequested = URLDecoder.decode(getUrlRequested(clientGetRequest), "UTF-8");
+			String urlRequested = request.getDecodedUrl();
+
+			// Get current date .. formatted once per second by the header writer
+			byte[] date = headerWriter.getDate();
+
+			keepAlive = keepAliveAllowed && isKeepAliveRequested(request);
 
-			// Get current date
-			DateFormat dateFormat = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z");
-			Calendar cal = Calendar.getInstance();
-			String date = dateFormat.format(cal.getTime());
-			
 			// Handle load monitoring request separately .. virtual URL = "/load"
 			if (urlRequested.equals("/load") && loadBalancer != null) {
 
-				String statusCode = (loadBalancer.isSystemOverloaded()) ? STATUS_OVERLOADED : STATUS_ACCEPTING;
-				
-				// return reply to be sent
-				replyMessage = 	createReplyMessage(statusCode, date, "EMPTY", "0", null);
-				return replyMessage;
+				String statusCode;
+				serverLoad.loadProbeStarted();
+				try {
+					// return reply to be sent .. with the load score in the body if the plugin reports one
+					// the status and the body come from the same sample of the score
+					if (loadReporter != null) {
+						double loadScore = loadReporter.getLoadScore();
+						statusCode = (loadScore > 1.0) ? STATUS_OVERLOADED : STATUS_ACCEPTING;
+						byte[] loadReport = loadReporter.getLoadReport(loadScore).getBytes();
+						replyMessage = createReplyMessage(statusCode, date, "text/plain", loadReport.length, keepAlive, loadReport);
+					} else {
+						statusCode = (loadBalancer.isSystemOverloaded()) ? STATUS_OVERLOADED : STATUS_ACCEPTING;
+						replyMessage = 	createReplyMessage(statusCode, date, "EMPTY", 0, keepAlive, null);
+					}
+				} finally {
+					serverLoad.loadProbeFinished();
+				}
+				SHTTPResponse response = new SHTTPResponse(replyMessage, keepAlive);
+				response.setStatusCode(statusCode);
+				return response;
 			}
 
-			// Read in any extra fields present in the header in a HashMap
-			HashMap<String, String> requestFields = getRequestExtrasMap(inFromClient);
+			// Runtime metrics .. virtual URL = "/stats", as JSON for "/stats?json"
+			if (urlRequested.equals("/stats") || urlRequested.startsWith("/stats?")) {
+
+				boolean json = urlRequested.contains("json");
+				byte[] stats = (json ? serverStats.toJson() : serverStats.toText()).getBytes();
+				replyMessage = createReplyMessage(STATUS_OK, date, json ? "application/json" : "text/plain",
+						stats.length, keepAlive, stats);
+				SHTTPResponse response = new SHTTPResponse(replyMessage, keepAlive);
+				response.setStatusCode(STATUS_OK);
+				return response;
+			}
 
 			// Handle User-Agent appropriately if specified in client request
-			String userAgentValue = requestFields.get("User-Agent");
+			String userAgentValue = request.getHeader("User-Agent");
 			boolean iPhoneUserAgent = false;
 			if (userAgentValue != null) iPhoneUserAgent = true;
 
 			// Fetch requested file from document root if present
 			if (urlRequested.length() > 0 && urlRequested.charAt(urlRequested.length() - 1) == '/') {
 				if (iPhoneUserAgent) {
+					if (!blockingAllowed) return DEFERRED;	// the lookup may read the disk
 					// Return index_m.html if it exists
 					byte[] iphoneIndexFile = lookupRequestedFile(urlRequested + "index_m.html");
 					if (iphoneIndexFile != null) urlRequested += "index_m.html";
@@ -258,49 +762,125 @@ public class SHTTPServer {
 				}
 			}
 
-			// Fetches file with the associated url .. handles caching too! .. returns null if file is executable
-			byte[] requestedFile = lookupRequestedFile(urlRequested);
+			// Range requests are served from the uncompressed file .. with If-Range (whose validator
+			// can't be checked: no ETag or Last-Modified is sent) the whole file is sent instead
+			String rangeHeader = request.getHeader("Range");
+			boolean rangeRequest = (rangeHeader != null && request.getHeader("If-Range") == null);
+
+			// Clients that accept gzip get the compressed variant of a file once it has been made
+			String fileFullPath = documentRoot + urlRequested;
+			boolean acceptsGzip = (gzipVariants != null && !rangeRequest
+					&& request.acceptsEncoding(ResponseHeaderWriter.ENCODING_GZIP));
+
+			// Replies for cached files are kept fully rendered .. only the Date header is patched in
+			// (conditional and range requests need the file itself and are always served the long way)
+			String ifModifiedSince = request.getHeader("If-Modified-Since");
+			boolean conditionalRequest = (ifModifiedSince != null && !ifModifiedSince.equals(""));
+			String replyVariant = keepAlive ? "keep-alive" : "close";
+			long lookupStart = System.nanoTime();
+			if (!conditionalRequest && !rangeRequest) {
+				byte[] prerenderedReply = null;
+				String replyKey = null;		// of the file (or variant) the reply was rendered from
+				if (acceptsGzip) {
+					replyKey = GzipVariants.getVariantKey(fileFullPath);
+					prerenderedReply = responseCache.get(replyKey, replyVariant, date);
+				}
+				if (prerenderedReply == null) {
+					replyKey = fileFullPath;
+					prerenderedReply = responseCache.get(replyKey, replyVariant, date);
+
+					// The identity reply of a file without a gzip variant .. have one made; if the variant
+					// is there but its reply isn't, render that below instead
+					if (prerenderedReply != null && acceptsGzip) {
+						byte[] variant = gzipVariants.peek(fileFullPath);
+						byte[] identity = cache.peek(fileFullPath);
+						if (variant == null && identity != null
+								&& GzipVariants.isCompressible(getContentTypeFromExtension(urlRequested), identity.length)) {
+							gzipVariants.compressLater(fileFullPath, identity, metadataCache.get(fileFullPath));
+						} else if (variant != null && variant.length > 0) {
+							prerenderedReply = null;
+						}
+					}
+				}
+				if (prerenderedReply != null) {
+					// The file cache never sees this request otherwise: its policy, admission sketch and
+					// hit ratio would take the most requested files for unused ones
+					cache.touch(replyKey);
+					serverStats.recordPhase(ServerStats.PHASE_CACHE_LOOKUP, System.nanoTime() - lookupStart);
+					SHTTPResponse response = new SHTTPResponse(prerenderedReply, keepAlive);
+					response.setPrerendered(true);
+					response.setStatusCode(STATUS_OK);
+					return response;
+				}
+			}
+			// The lookup is finished (and recorded) by the thread the request is deferred to
+			if (!blockingAllowed) return DEFERRED;
+
+			// Small files are cached on the heap .. large files are kept off the heap: mapped into memory
+			// by the mapped cache, or else left on disk for the caller to send without copying them
+			byte[] requestedFile = cache.get(documentRoot + urlRequested);
+			long lookupEnd = System.nanoTime();
+			serverStats.recordPhase(ServerStats.PHASE_CACHE_LOOKUP, lookupEnd - lookupStart);
+			ByteBuffer mappedFile = null;
+			File zeroCopyFile = null;
+			if (requestedFile == null) {
+				mappedFile = lookupMappedFile(urlRequested);
+				if (mappedFile == null && zeroCopyAllowed) zeroCopyFile = lookupZeroCopyFile(urlRequested);
+
+				// Fetches file from disk and caches it .. returns null if file is executable
+				if (mappedFile == null && zeroCopyFile == null) requestedFile = readRequestedFile(urlRequested);
+				serverStats.recordPhase(ServerStats.PHASE_DISK_READ, System.nanoTime() - lookupEnd);
+			}
 
 			// Handle executable file case
 			boolean fileIsExecutable = false;
 			String execFileName = urlRequested;
-			if (requestedFile == null) {
+			if (requestedFile == null && mappedFile == null && zeroCopyFile == null) {
 				// Need to first strip out the search query parameters passed
 				int queryIdentifierIdx = urlRequested.indexOf('?');	
 				if (queryIdentifierIdx >= 0) {
 					execFileName = urlRequested.substring(0, queryIdentifierIdx);
 				}
-				File executableFile = new File(documentRoot + execFileName);
-				if (!executableFile.isDirectory() && executableFile.canExecute()) {
+				if (metadataCache.get(documentRoot + execFileName).isProgram()) {
 					fileIsExecutable = true;
 				}
 			}
 
-			String statusCode, contentType, lengthOfFile;
+			String statusCode, contentType;
+			long lengthOfFile;
 			if (requestedFile != null) {
 				statusCode = STATUS_OK;
-				lengthOfFile = "" + requestedFile.length;
+				lengthOfFile = requestedFile.length;
+				contentType = getContentTypeFromExtension(urlRequested);
+			} else if (mappedFile != null) {
+				statusCode = STATUS_OK;
+				lengthOfFile = mappedFile.remaining();
+				contentType = getContentTypeFromExtension(urlRequested);
+			} else if (zeroCopyFile != null) {
+				statusCode = STATUS_OK;
+				lengthOfFile = metadataCache.get(documentRoot + urlRequested).length();
 				contentType = getContentTypeFromExtension(urlRequested);
 			} else if (fileIsExecutable) {
 				// Output of the process goes to requestedFile
-				requestedFile = runProcess(urlRequested, execFileName, clientAddress, clientPort);			
+				long cgiStart = System.nanoTime();
+				requestedFile = runProcess(urlRequested, execFileName, clientAddress, clientPort);
+				serverStats.recordPhase(ServerStats.PHASE_CGI, System.nanoTime() - cgiStart);
 				statusCode = STATUS_OK;
-				lengthOfFile = "" + requestedFile.length;
+				lengthOfFile = requestedFile.length;
 				contentType = "text/plain"; // ??
 			} else {
 				statusCode = STATUS_ERROR;
-				lengthOfFile = "0";
+				lengthOfFile = 0;
 				contentType = "EMPTY";
 			}
 
 			// Handle If-Modified-Since appropriately if specified in client request
 			// e.g. If-Unmodified-Since: Sat, 29 Oct 1994 19:43:31 GMT
-			String ifModifiedSince = requestFields.get("If-Modified-Since");
-			if (ifModifiedSince != null && !ifModifiedSince.equals("")) {
-				Date oldDate = (Date) dateFormat.parse(ifModifiedSince);
-				if (requestedFile != null && oldDate != null) {
-					File requestedFileFromDisk = new File(documentRoot + urlRequested);
-					long fileLastModifiedTime = requestedFileFromDisk.lastModified();
+			if (conditionalRequest) {
+				DateFormat dateFormat = new SimpleDateFormat(ResponseHeaderWriter.DATE_FORMAT);
+				Date oldDate = dateFormat.parse(ifModifiedSince);
+				if ((requestedFile != null || mappedFile != null || zeroCopyFile != null) && oldDate != null) {
+					long fileLastModifiedTime = metadataCache.get(documentRoot + urlRequested).lastModified();
 					long ifModifiedSinceTime = oldDate.getTime();
 					if (fileLastModifiedTime <= ifModifiedSinceTime) {
 						statusCode = STATUS_UNMODIFIED;
@@ -308,35 +888,94 @@ public class SHTTPServer {
 				}
 			}
 
-			replyMessage = 	createReplyMessage(statusCode, date, contentType, lengthOfFile, requestedFile);
+			// Send only the requested bytes of a static file .. or none if they lie past its end
+			boolean staticFile = !fileIsExecutable && (requestedFile != null || mappedFile != null || zeroCopyFile != null);
+			ByteRange range = null;
+			if (rangeRequest && staticFile && statusCode == STATUS_OK) {
+				range = ByteRange.parse(rangeHeader, lengthOfFile);
+				if (range != null) {
+					statusCode = range.isSatisfiable() ? STATUS_PARTIAL : STATUS_UNSATISFIABLE;
+					lengthOfFile = range.getLength();
+				}
+			}
+
+			// Files that can be compressed are sent gzipped if the client accepts it and the variant has
+			// been made, else as they are (saying so with Vary) and the variant is made for next time
+			String contentEncoding = null;
+			byte[] gzipVariant = null;
+			if (gzipVariants != null && staticFile && range == null && GzipVariants.isCompressible(contentType, lengthOfFile)) {
+				contentEncoding = ResponseHeaderWriter.ENCODING_IDENTITY;
+				if (acceptsGzip) {
+					gzipVariant = gzipVariants.get(fileFullPath);
+					if (gzipVariant == null) {
+						// mapped and zero-copy files are read from disk again by the compression pool
+						gzipVariants.compressLater(fileFullPath, requestedFile, metadataCache.get(fileFullPath));
+					} else if (gzipVariant.length == 0) {
+						gzipVariant = null;		// doesn't shrink
+					} else {
+						contentEncoding = ResponseHeaderWriter.ENCODING_GZIP;
+						lengthOfFile = gzipVariant.length;
+					}
+				}
+			}
+
+			byte[] body = (gzipVariant != null) ? gzipVariant : requestedFile;
+			if (range != null) body = null;		// the range is sent after the header, as is
+			replyMessage = 	createReplyMessage(statusCode, date, contentType, lengthOfFile, contentEncoding, range, keepAlive, body);
+			replyStatus = statusCode;
+			if (statusCode == STATUS_OK && gzipVariant == null) {
+				bodyFile = zeroCopyFile;
+				bodyFileLength = lengthOfFile;
+				bodyBuffer = mappedFile;
+			} else if (statusCode == STATUS_PARTIAL) {
+				bodyFile = zeroCopyFile;
+				bodyFilePosition = range.getFirst();
+				bodyFileLength = range.getLength();
+				if (requestedFile != null) bodyBuffer = slice(ByteBuffer.wrap(requestedFile).asReadOnlyBuffer(), range);
+				if (mappedFile != null) bodyBuffer = slice(mappedFile, range);
+			}
+
+			// Keep the reply if its body is the file (or variant) held in the cache, so the removal
+			// listener drops it whenever that leaves the cache; if it left already, drop it right away
+			if (statusCode == STATUS_OK && body != null && !fileIsExecutable) {
+				String bodyKey = (gzipVariant != null) ? GzipVariants.getVariantKey(fileFullPath) : fileFullPath;
+				responseCache.put(bodyKey, replyVariant, replyMessage, headerWriter.getDateOffset(statusCode), date);
+				if (cache.peek(bodyKey) != body) responseCache.entryRemoved(bodyKey);
+			}
 
-		} catch (IOException e) {
-			//System.err.println("IOException in processing request: " + e.getMessage());
 		} catch (ParseException e) {
 			System.err.println("ParseException in parsing date from If-Modified-Since: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid URL in request: " + e.getMessage());
 		}
 
-		return replyMessage;
+		if (replyMessage == null) return null;
+		SHTTPResponse response = new SHTTPResponse(replyMessage, keepAlive);
+		response.setBodyFile(bodyFile, bodyFilePosition, bodyFileLength);
+		response.setBodyBuffer(bodyBuffer);
+		response.setStatusCode(replyStatus);
+		return response;
 	}
 
-	private boolean isClientGetRequestValid(String clientGetRequest) {
-
-		// clientRequest should be: GET <URL> HTTP/1.0 .. where URL has to start with "/"		
-		if (clientGetRequest == null || clientGetRequest.isEmpty()) return false;
-		String[] splitGetRequest = clientGetRequest.split(" ");
-		if (splitGetRequest.length != 3) return false;
-		if (!splitGetRequest[0].equals("GET")) return false;
-		if (splitGetRequest[1].charAt(0) != '/') return false;
-		//if (!splitGetRequest[2].equals("HTTP/1.0")) return false;		
-
-		return true;
+	/* Returns the part of buffer (from its position) in range */
+	private static ByteBuffer slice(ByteBuffer buffer, ByteRange range) {
+		ByteBuffer part = buffer.duplicate();
+		part.position(part.position() + (int) range.getFirst());
+		part.limit(part.position() + (int) range.getLength());
+		return part.slice();
 	}
 
-	private String getUrlRequested(String clientRequest) {
+	/* HTTP/1.1 connections are persistent unless the client sends "Connection: close"
+	 * HTTP/1.0 connections are persistent only if the client sends "Connection: keep-alive"
+	 */
+	private boolean isKeepAliveRequested(SHTTPRequest request) {
 
-		// clientRequest is of form: GET <URL> HTTP/1.0
-		String[] splitRequest = clientRequest.split(" ");
-		return splitRequest[1];
+		if (keepAliveTimeout <= 0) return false;
+		String connection = request.getHeader("Connection");
+		if (request.isHttp11()) {
+			return (connection == null || !connection.equalsIgnoreCase("close"));
+		}
+		return (connection != null && connection.equalsIgnoreCase("keep-alive"));
 	}
 
 	private String getContentTypeFromExtension(String urlRequested) {
@@ -350,23 +989,43 @@ public class SHTTPServer {
 		return extension;
 	}
 
-	private HashMap<String, String> getRequestExtrasMap(BufferedReader inFromClient) {
+	/* Returns the requested file if it is to be sent straight from disk, i.e. if it is a regular
+	 * non-executable file of at least zeroCopyThreshold bytes, or one too large for the cache ..
+	 * returns null otherwise
+	 * Such files are never read into memory or added to the cache
+	 */
+	private File lookupZeroCopyFile(String urlRequested) {
 
-		HashMap<String, String> extrasMap = new HashMap<String, String>();		
-		try {
-			String line = inFromClient.readLine();
-			while (line != null && !line.equals("")) {
-				String[] splitExtra = line.split(" ");
-				if (splitExtra.length == 2) {
-					extrasMap.put(splitExtra[0], splitExtra[1]);
-				}
-				line = inFromClient.readLine();
-			}
-		} catch (IOException e) {
-			System.err.println("IOException in reading client request: " + e.getMessage());
+		String fileFullPath = documentRoot + urlRequested;
+		FileMetadata metadata = metadataCache.get(fileFullPath);
+		boolean large = (zeroCopyThreshold > 0 && metadata.length() >= zeroCopyThreshold) || metadata.length() > maxCacheSize;
+		if (metadata.isStaticFile() && large) {
+			return new File(fileFullPath);
 		}
+		return null;
+	}
+
+	/* Looks up the requested file in the mapped cache, mapping it if it is a regular non-executable
+	 * file of at least zeroCopyThreshold bytes .. returns a read-only view of the mapped file or null
+	 */
+	private ByteBuffer lookupMappedFile(String urlRequested) {
 
-		return extrasMap;
+		if (mappedCache == null) return null;
+		String fileFullPath = documentRoot + urlRequested;
+		ByteBuffer mappedFile = mappedCache.get(fileFullPath);
+		if (mappedFile != null) return mappedFile;
+
+		long generation = getWatchGeneration();
+		FileMetadata metadata = metadataCache.get(fileFullPath);
+		if (metadata.isStaticFile() && metadata.length() >= zeroCopyThreshold) {
+			try {
+				mappedFile = mappedCache.put(fileFullPath, new File(fileFullPath));
+				if (mappedFile != null) fileLoaded(fileFullPath, metadata, generation);
+			} catch (IOException e) {
+				System.err.println("IOException in mapping file from disk: " + e.getMessage());
+			}
+		}
+		return mappedFile;
 	}
 
 	/* Looks up the requested file (in form of url) in the cache or disk
@@ -374,47 +1033,84 @@ public class SHTTPServer {
 	 */
 	private byte[] lookupRequestedFile(String urlRequested) {
 
+		// First check if the file exists in the cache
+		byte[] cachedFileArray = cache.get(documentRoot + urlRequested);
+		if (cachedFileArray != null) return cachedFileArray;
+		return readRequestedFile(urlRequested);
+	}
+
+	/* Reads the requested file (in form of url) from disk and adds it to the cache
+	 * NOTE: Returns null if the file is executable! (Without adding to cache)
+	 */
+	private byte[] readRequestedFile(String urlRequested) {
+		return readRequestedFile(urlRequested, true);
+	}
+
+	/* retryIfChanged: read the file again (once) if its size no longer matches its cached metadata */
+	private byte[] readRequestedFile(String urlRequested, boolean retryIfChanged) {
+
 		String fileFullPath = documentRoot + urlRequested;
 		byte[] toReturn = null;
 
-		// First check if the file exists in the cache
-		if (cache.containsKey(fileFullPath)) {
-			byte[] cachedFileArray = cache.get(fileFullPath);
-			toReturn = cachedFileArray;			
-		} else {
-			// Need to fetch file from disk
-			File fetchedFile = new File(fileFullPath);
-			boolean isExecutable = fetchedFile.canExecute();
-			// Check if file exists on the disk && is NOT a directory && is NOT executable
-			if (fetchedFile.exists() && !fetchedFile.isDirectory() && !isExecutable) {
+		// Need to fetch file from disk
+		long generation = getWatchGeneration();
+		FileMetadata metadata = metadataCache.get(fileFullPath);
+		// Check if file exists on the disk && is NOT a directory && is NOT executable
+		if (metadata.isStaticFile()) {
+			if (metadata.length() > MAX_ARRAY_LENGTH) {
+				System.err.println("File too large to be read into memory: " + fileFullPath);
+				return null;
+			}
+			try {
+				// Read the whole file into a byte array .. of the size it had when its metadata was read
+				// (a chunk per read, so the channel's temporary direct buffer stays small)
+				toReturn = new byte[(int) metadata.length()];
+				ByteBuffer buffer = ByteBuffer.wrap(toReturn);
+				FileChannel channel = new FileInputStream(fileFullPath).getChannel();
+				boolean sizeChanged;
 				try {
-					// Read the whole file into a byte array
-					toReturn = new byte[(int) fetchedFile.length()];
-					FileInputStream in = new FileInputStream(fetchedFile);
-					int idx = 0;
-					int b;
-					while ((b = in.read()) != -1) {
-						toReturn[idx] = (byte) b;
-						idx++;
+					while (buffer.position() < toReturn.length) {
+						buffer.limit(Math.min(buffer.capacity(), buffer.position() + READ_CHUNK_SIZE));
+						if (channel.read(buffer) == -1) break;
 					}
-					in.close();
+					sizeChanged = (buffer.position() < toReturn.length || channel.size() != toReturn.length);
+				} finally {
+					channel.close();
+				}
 
-					// Add the file in cache if maxCacheSize has not been exceeded
-					int newCacheSize = currentCacheSize + toReturn.length;
-					if (newCacheSize <= maxCacheSize) {
-						cache.put(fileFullPath, toReturn);
-						incrementCacheSize(newCacheSize);
-					}
-				} catch (IOException e) {
-					System.err.println("IOException in reading file from disk: " + e.getMessage());
+				// The file changed since .. read it again with fresh metadata
+				if (sizeChanged) {
+					metadataCache.invalidate(fileFullPath);
+					return retryIfChanged ? readRequestedFile(urlRequested, false) : null;
 				}
+
+				// Add the file in cache .. evicts other files if maxCacheSize would be exceeded
+				if (cache.put(fileFullPath, toReturn)) fileLoaded(fileFullPath, metadata, generation);
+			} catch (IOException e) {
+				// e.g. the file was removed since its metadata was read
+				System.err.println("IOException in reading file from disk: " + e.getMessage());
+				metadataCache.invalidate(fileFullPath);
+				toReturn = null;
 			}
 		}
 		return toReturn;
 	}
 	
-	private synchronized void incrementCacheSize(int newCacheSize) {
-		currentCacheSize = newCacheSize;
+	private long getWatchGeneration() {
+		return (documentRootWatcher != null) ? documentRootWatcher.getGeneration() : 0;
+	}
+
+	/* Tells the watcher a file was cached .. unless files were invalidated since it was read from
+	 * disk (at generation): it may be an old version then, so it is dropped again
+	 */
+	private void fileLoaded(String fileFullPath, FileMetadata metadata, long generation) {
+		if (documentRootWatcher == null) return;
+		documentRootWatcher.fileLoaded(fileFullPath, metadata);
+		if (documentRootWatcher.getGeneration() != generation) {
+			cache.remove(fileFullPath);
+			if (mappedCache != null) mappedCache.remove(fileFullPath);
+			documentRootWatcher.entryRemoved(fileFullPath);
+		}
 	}
 
 	private byte[] runProcess(String urlRequested, String execFileName, InetAddress clientAddress, int clientPort) {
@@ -450,10 +1146,10 @@ public class SHTTPServer {
 			processBuilder.directory(new File(documentRoot));
 			Process process = processBuilder.start();
 			InputStream processInputStream = process.getInputStream();
-			int b = processInputStream.read();
-			while(b != -1) {
-				processOutputBuffer.write((byte) b);
-				b = processInputStream.read();
+			byte[] chunk = new byte[IN_BUFFER_SIZE];
+			int readBytes;
+			while ((readBytes = processInputStream.read(chunk)) != -1) {
+				processOutputBuffer.write(chunk, 0, readBytes);
 			}
 		} catch (IOException e) {
 			System.err.println("Error in running process " + urlRequested + ": " + e.getMessage());
@@ -467,50 +1163,30 @@ public class SHTTPServer {
 	 *	Server: <your server name>
 	 *	Content-Type: text/html
 	 *	Content-Length: <LengthOfFile>
+	 *	Connection: keep-alive | close
 	 *	CRLF
-	 *	<file content> 
+	 *	<file content>
 	 */
-	private byte[] createReplyMessage(String statusCode, String date, String contentType, String lengthOfFile, byte[] file) {
-
-		ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-
-		try {
-
-			String http = "HTTP/1.0 ";
-			String dateLabel = "Date: ";
-			String serverLabel = "Server: ";
-			String contentLabel = "Content-Type: ";
-			String lengthLabel = "Content-Length: ";
-			String crlf = "\r\n";
-
-			// Write header bytes in the byte buffer
-			byteBuffer.write(http.getBytes());
-			byteBuffer.write(statusCode.getBytes());
-			byteBuffer.write(crlf.getBytes());
-			byteBuffer.write(dateLabel.getBytes());
-			byteBuffer.write(date.getBytes());
-			byteBuffer.write(crlf.getBytes());
-			byteBuffer.write(serverLabel.getBytes());
-			byteBuffer.write(SERVER_NAME.getBytes());
-			byteBuffer.write(crlf.getBytes());
-			byteBuffer.write(contentLabel.getBytes());
-			byteBuffer.write(contentType.getBytes());
-			byteBuffer.write(crlf.getBytes());
-			byteBuffer.write(lengthLabel.getBytes());
-			byteBuffer.write(lengthOfFile.getBytes());
-			byteBuffer.write(crlf.getBytes());
-			byteBuffer.write(crlf.getBytes());
-
-			// Read in the whole file in the byte buffer
-			if (statusCode == STATUS_OK) {
-				byteBuffer.write(file);
-			}
-
-		} catch (Exception e) {
-			System.err.println("Error in creating reply message: " + e.getMessage());
-		}
+	byte[] createReplyMessage(String statusCode, byte[] date, String contentType, long lengthOfFile,
+			boolean keepAlive, byte[] file) {
+		return createReplyMessage(statusCode, date, contentType, lengthOfFile, null, null, keepAlive, file);
+	}
 
-		return byteBuffer.toByteArray();
+	/* contentEncoding: null, or ResponseHeaderWriter.ENCODING_IDENTITY / ENCODING_GZIP for a file
+	 * that has a gzip variant .. adds Content-Encoding and Vary headers after Content-Length
+	 * range: for a 206 or 416 reply .. adds a Content-Range header; null = none
+	 */
+	byte[] createReplyMessage(String statusCode, byte[] date, String contentType, long lengthOfFile,
+			String contentEncoding, ByteRange range, boolean keepAlive, byte[] file) {
+
+		// Header bytes are written by the header writer straight into the reply .. the file is
+		// appended unless the body is sent separately
+		int bodyLength = (statusCode != STATUS_UNMODIFIED && file != null) ? file.length : 0;
+		int headerLength = headerWriter.getHeaderLength(statusCode, date, contentType, lengthOfFile, contentEncoding, range, keepAlive);
+		ByteBuffer reply = ByteBuffer.allocate(headerLength + bodyLength);
+		headerWriter.write(reply, statusCode, date, contentType, lengthOfFile, contentEncoding, range, keepAlive);
+		if (bodyLength > 0) reply.put(file);
+		return reply.array();
 	}
 
 }
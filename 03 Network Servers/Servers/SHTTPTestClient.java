@@ -12,6 +12,7 @@ public class SHTTPTestClient {
 	private static final String PARALLEL_ARG = "-parallel";
 	private static final String FILES_ARG = "-files";
 	private static final String TIME_ARG = "-T";
+	private static final String ENCODING_ARG = "-encoding";
 
 	private static long totalTransactions = 0;
 	private static long totalBytesReceived = 0;
@@ -19,9 +20,10 @@ public class SHTTPTestClient {
 
 	public static void main (String[] args) {
 
-		if (args.length != 10) {
+		if (args.length != 10 && args.length != 12) {
 			System.err.println("Usage: -server <server> -port <server port> "
-					+ "-parallel <# of threads> -files <file name> -T <time of test in seconds>");
+					+ "-parallel <# of threads> -files <file name> -T <time of test in seconds> "
+					+ "[-encoding <accepted content coding>]");
 			return;
 		}
 
@@ -31,6 +33,7 @@ public class SHTTPTestClient {
 		int numThreads;
 		ArrayList<String> filesToRequest;
 		int testTime;
+		String acceptEncoding;
 
 		// Parse command line arguments
 		try {
@@ -39,6 +42,7 @@ public class SHTTPTestClient {
 			numThreads = Integer.parseInt(argsMap.get(PARALLEL_ARG));
 			filesToRequest = getFilesToRequest(argsMap.get(FILES_ARG));
 			testTime = Integer.parseInt(argsMap.get(TIME_ARG));
+			acceptEncoding = argsMap.get(ENCODING_ARG);	// e.g. gzip; null = none
 
 		} catch (Exception e) {
 			System.err.print("Exception in parsing args: " + e.getMessage());
@@ -48,7 +52,7 @@ public class SHTTPTestClient {
 		// Start sendRequests on numThreads timer tasks! All timers should be killed at end of testTime
 		ArrayList<ClientRequestThread> clientThreadPool = new ArrayList<ClientRequestThread>();
 		for (int i = 0; i < numThreads; i++) {
-			ClientRequestThread requestThread = new ClientRequestThread(filesToRequest, serverAddress, serverPort);
+			ClientRequestThread requestThread = new ClientRequestThread(filesToRequest, serverAddress, serverPort, acceptEncoding);
 			clientThreadPool.add(requestThread);
 			requestThread.start();
 		}
@@ -97,9 +101,9 @@ public class SHTTPTestClient {
 		System.out.println("========== Client requests statistics ==========");
 		System.out.println();
 
-		System.out.println("Total transaction throughput (#transactions per second): " + totalTransactions/testTime * 1.0);
-		System.out.println("Data rate throughput (#megabytes per second): " + (totalBytesReceived/testTime * 1.0) / 1048576);
-		if (totalTransactions != 0) System.out.println("Average wait time (ms): " + totalWaitTime/totalTransactions * 1.0);
+		System.out.println("Total transaction throughput (#transactions per second): " + (double) totalTransactions / testTime);
+		System.out.println("Data rate throughput (#megabytes per second): " + (double) totalBytesReceived / testTime / 1048576);
+		if (totalTransactions != 0) System.out.println("Average wait time (ms): " + (double) totalWaitTime / totalTransactions);
 	}
 
 	/* Thread safe methods to update statistics collected on client run
@@ -0,0 +1,70 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Segmented LRU: new entries go into a probationary segment and are promoted to a
+ * protected segment when they are hit again. Victims are taken from the probationary
+ * segment first, so files that are requested only once can't flush out the ones
+ * that are requested repeatedly.
+ */
+
+public class SegmentedLRUCachePolicy implements CachePolicy {
+
+	// Share of the cached entries that may be in the protected segment
+	private static final double PROTECTED_RATIO = 0.8;
+
+	// Both segments are kept in access order: least recently used first
+	private LinkedHashMap<String, Boolean> probationary;
+	private LinkedHashMap<String, Boolean> protectedSegment;
+
+	public SegmentedLRUCachePolicy() {
+		probationary = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	}
+
+	public void recordInsert(String key) {
+		probationary.put(key, Boolean.TRUE);
+	}
+
+	public void recordAccess(String key) {
+		if (protectedSegment.get(key) != null) return;
+
+		// Hit on a probationary entry: promote it
+		if (probationary.remove(key) != null) {
+			protectedSegment.put(key, Boolean.TRUE);
+
+			// Demote the least recently used protected entries if the protected segment is too big
+			int maxProtected = (int) ((probationary.size() + protectedSegment.size()) * PROTECTED_RATIO);
+			while (protectedSegment.size() > Math.max(maxProtected, 1)) {
+				String demoted = protectedSegment.keySet().iterator().next();
+				protectedSegment.remove(demoted);
+				probationary.put(demoted, Boolean.TRUE);
+			}
+		}
+	}
+
+	public void recordRemoval(String key) {
+		if (probationary.remove(key) == null) protectedSegment.remove(key);
+	}
+
+	public String selectVictim() {
+		if (!probationary.isEmpty()) return probationary.keySet().iterator().next();
+		if (!protectedSegment.isEmpty()) return protectedSegment.keySet().iterator().next();
+		return null;
+	}
+
+	/* The probationary segment, then the protected one */
+	public Iterator<String> victims() {
+		final Iterator<String> probationaryVictims = probationary.keySet().iterator();
+		final Iterator<String> protectedVictims = protectedSegment.keySet().iterator();
+		return new Iterator<String>() {
+			public boolean hasNext() {
+				return probationaryVictims.hasNext() || protectedVictims.hasNext();
+			}
+
+			public String next() {
+				return probationaryVictims.hasNext() ? probationaryVictims.next() : protectedVictims.next();
+			}
+		};
+	}
+}
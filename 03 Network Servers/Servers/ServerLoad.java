@@ -0,0 +1,109 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Live load figures of one server, kept by the SHTTPServer and the server variants and read by
+ * LoadReporter plugins: requests in flight, lag of the Dispatcher select loops (AsyncServer only)
+ * and the hit ratio of the file cache over the last sample interval.
+ */
+
+public class ServerLoad {
+
+	private static final long HIT_RATIO_SAMPLE_INTERVAL = 1000;	// in ms
+
+	private AtomicInteger inFlight;
+	private AtomicInteger loadProbes;	// /load requests in flight: counted in inFlight but no load
+	private int inFlightCapacity;		// # of requests the server can serve at once
+	private CopyOnWriteArrayList<Dispatcher> dispatchers;
+	private FileCache cache;
+
+	// Cache hit ratio over the last sample interval
+	// A ReentrantLock rather than the monitor, so a virtual thread waiting for the cache doesn't pin its carrier
+	private final ReentrantLock sampleLock = new ReentrantLock();
+	private volatile long lastSampleTime;	// in ms
+	private long lastHits;
+	private long lastMisses;
+	private volatile double cacheHitRatio;
+
+	public ServerLoad(FileCache cache, int inFlightCapacity) {
+		inFlight = new AtomicInteger();
+		loadProbes = new AtomicInteger();
+		this.inFlightCapacity = Math.max(1, inFlightCapacity);
+		dispatchers = new CopyOnWriteArrayList<Dispatcher>();
+		this.cache = cache;
+		lastSampleTime = System.currentTimeMillis();
+		lastHits = cache.getHits();
+		lastMisses = cache.getMisses();
+		cacheHitRatio = 1.0;
+	}
+
+	/* Called when a complete request starts being served */
+	public void requestStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	/* Called when the reply to a request has been handed over to the connection (or dropped) */
+	public void requestFinished() {
+		inFlight.decrementAndGet();
+	}
+
+	/* Called around the serving of a /load request, so that probing the load does not add to it */
+	public void loadProbeStarted() {
+		loadProbes.incrementAndGet();
+	}
+
+	public void loadProbeFinished() {
+		loadProbes.decrementAndGet();
+	}
+
+	/* Returns the # of requests in flight, not counting /load probes */
+	public int getInFlight() {
+		return Math.max(0, inFlight.get() - loadProbes.get());
+	}
+
+	public int getInFlightCapacity() {
+		return inFlightCapacity;
+	}
+
+	public void setInFlightCapacity(int inFlightCapacity) {
+		this.inFlightCapacity = Math.max(1, inFlightCapacity);
+	}
+
+	public void addDispatcher(Dispatcher dispatcher) {
+		dispatchers.add(dispatcher);
+	}
+
+	/* Returns the largest lag of any dispatcher in ns; 0 if the server has none */
+	public long getDispatcherLag() {
+		long lag = 0;
+		for (Dispatcher dispatcher : dispatchers) {
+			lag = Math.max(lag, dispatcher.getLag());
+		}
+		return lag;
+	}
+
+	/* Returns the hit ratio of the lookups in the last sample interval, so that it keeps following
+	 * the working set after warm-up; 1 if there were none: nothing missed
+	 * While another thread takes a new sample, the last one is returned
+	 */
+	public double getCacheHitRatio() {
+		long now = System.currentTimeMillis();
+		if (now - lastSampleTime >= HIT_RATIO_SAMPLE_INTERVAL && sampleLock.tryLock()) {
+			try {
+				if (now - lastSampleTime >= HIT_RATIO_SAMPLE_INTERVAL) {
+					long hits = cache.getHits();
+					long misses = cache.getMisses();
+					long lookups = (hits - lastHits) + (misses - lastMisses);
+					cacheHitRatio = (lookups > 0) ? ((double) (hits - lastHits)) / lookups : 1.0;
+					lastHits = hits;
+					lastMisses = misses;
+					lastSampleTime = now;
+				}
+			} finally {
+				sampleLock.unlock();
+			}
+		}
+		return cacheHitRatio;
+	}
+}
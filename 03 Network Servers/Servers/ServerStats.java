@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runtime metrics of a server, served from the virtual URL "/stats":
+ *  - a LatencyHistogram per phase of serving a request (queue, parse, cache lookup, disk read,
+ *    CGI, write) and for the whole request per response status
+ *  - requests and bytes sent per response status, with the rates since start
+ *  - the toString() of other components registered with addComponent (caches, queues, pools)
+ * Every method may be called from any thread.
+ */
+
+public class ServerStats {
+
+	public static final int PHASE_QUEUE = 0;		// accept (or read in full) to start of service
+	public static final int PHASE_PARSE = 1;
+	public static final int PHASE_CACHE_LOOKUP = 2;
+	public static final int PHASE_DISK_READ = 3;
+	public static final int PHASE_CGI = 4;
+	public static final int PHASE_WRITE = 5;
+	private static final String[] PHASE_NAMES = { "queue", "parse", "cacheLookup", "diskRead", "cgi", "write" };
+
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+
+	private String serverName;
+	private long startTime;		// in ms
+	private LatencyHistogram[] phases;
+	private ConcurrentHashMap<String, StatusStats> statuses;
+	private CopyOnWriteArrayList<Object[]> components;	// { name, component }
+
+	public ServerStats(String serverName) {
+		this.serverName = serverName;
+		startTime = System.currentTimeMillis();
+		phases = new LatencyHistogram[PHASE_NAMES.length];
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+		statuses = new ConcurrentHashMap<String, StatusStats>();
+		components = new CopyOnWriteArrayList<Object[]>();
+	}
+
+	/* Records the time (in ns) one request spent in phase */
+	public void recordPhase(int phase, long time) {
+		phases[phase].record(time);
+	}
+
+	/* Records a request answered with statusCode: the time (in ns) from start of service until its
+	 * reply was sent and the # of bytes sent
+	 */
+	public void recordResponse(String statusCode, long time, long bytes) {
+		if (statusCode == null) statusCode = "unknown";
+		StatusStats status = statuses.get(statusCode);
+		if (status == null) {
+			status = new StatusStats();
+			StatusStats existing = statuses.putIfAbsent(statusCode, status);
+			if (existing != null) status = existing;
+		}
+		status.latency.record(time);
+		status.bytes.addAndGet(bytes);
+	}
+
+	/* Adds a component whose toString() is part of the stats, e.g. a cache or a queue */
+	public void addComponent(String name, Object component) {
+		components.add(new Object[] { name, component });
+	}
+
+	public String toText() {
+
+		StringBuilder text = new StringBuilder();
+		long uptime = Math.max(1, System.currentTimeMillis() - startTime);
+		long totalRequests = 0;
+		long totalBytes = 0;
+		for (StatusStats status : statuses.values()) {
+			totalRequests += status.latency.getCount();
+			totalBytes += status.bytes.get();
+		}
+
+		text.append("server ").append(serverName).append('\n');
+		text.append("uptime ").append(uptime / 1000).append(" s\n");
+		text.append("requests ").append(totalRequests).append('\n');
+		text.append(String.format(Locale.US, "throughput %.1f requests/s\n", totalRequests * 1000.0 / uptime));
+		text.append("bytes ").append(totalBytes).append('\n');
+		text.append(String.format(Locale.US, "bandwidth %.1f bytes/s\n", totalBytes * 1000.0 / uptime));
+
+		text.append("\nlatency by status (us): count mean p50 p99 p999 max, bytes\n");
+		for (Map.Entry<String, StatusStats> entry : new TreeMap<String, StatusStats>(statuses).entrySet()) {
+			text.append(entry.getKey()).append(": ");
+			appendHistogramText(text, entry.getValue().latency);
+			text.append(", ").append(entry.getValue().bytes.get()).append(" bytes\n");
+		}
+
+		text.append("\nlatency by phase (us): count mean p50 p99 p999 max\n");
+		for (int i = 0; i < phases.length; i++) {
+			text.append(PHASE_NAMES[i]).append(": ");
+			appendHistogramText(text, phases[i]);
+			text.append('\n');
+		}
+
+		if (!components.isEmpty()) {
+			text.append('\n');
+			for (Object[] component : components) {
+				text.append(component[0]).append(": ").append(component[1]).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder();
+		long uptime = Math.max(1, System.currentTimeMillis() - startTime);
+		long totalRequests = 0;
+		long totalBytes = 0;
+		for (StatusStats status : statuses.values()) {
+			totalRequests += status.latency.getCount();
+			totalBytes += status.bytes.get();
+		}
+
+		json.append("{\"server\":\"").append(escapeJson(serverName)).append('"');
+		json.append(",\"uptimeSeconds\":").append(uptime / 1000);
+		json.append(",\"requests\":").append(totalRequests);
+		json.append(String.format(Locale.US, ",\"requestsPerSecond\":%.1f", totalRequests * 1000.0 / uptime));
+		json.append(",\"bytes\":").append(totalBytes);
+		json.append(String.format(Locale.US, ",\"bytesPerSecond\":%.1f", totalBytes * 1000.0 / uptime));
+
+		json.append(",\"statuses\":{");
+		ArrayList<String> entries = new ArrayList<String>();
+		for (Map.Entry<String, StatusStats> entry : new TreeMap<String, StatusStats>(statuses).entrySet()) {
+			StringBuilder status = new StringBuilder();
+			status.append('"').append(escapeJson(entry.getKey())).append("\":");
+			appendHistogramJson(status, entry.getValue().latency, entry.getValue().bytes.get());
+			entries.add(status.toString());
+		}
+		appendJoined(json, entries);
+		json.append('}');
+
+		json.append(",\"phases\":{");
+		entries.clear();
+		for (int i = 0; i < phases.length; i++) {
+			StringBuilder phase = new StringBuilder();
+			phase.append('"').append(PHASE_NAMES[i]).append("\":");
+			appendHistogramJson(phase, phases[i], -1);
+			entries.add(phase.toString());
+		}
+		appendJoined(json, entries);
+		json.append('}');
+
+		json.append(",\"components\":{");
+		entries.clear();
+		for (Object[] component : components) {
+			entries.add("\"" + escapeJson(component[0].toString()) + "\":\"" + escapeJson(component[1].toString()) + "\"");
+		}
+		appendJoined(json, entries);
+		json.append("}}\n");
+		return json.toString();
+	}
+
+	private static void appendHistogramText(StringBuilder text, LatencyHistogram histogram) {
+		text.append(histogram.getCount()).append(' ').append(histogram.getMean() / 1000);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			text.append(' ').append(histogram.getPercentile(PERCENTILES[i]) / 1000);
+		}
+		text.append(' ').append(histogram.getMax() / 1000);
+	}
+
+	/* Times in us; bytes are left out if negative */
+	private static void appendHistogramJson(StringBuilder json, LatencyHistogram histogram, long bytes) {
+		json.append("{\"count\":").append(histogram.getCount());
+		json.append(",\"meanMicros\":").append(histogram.getMean() / 1000);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			json.append(",\"").append(PERCENTILE_NAMES[i]).append("Micros\":")
+					.append(histogram.getPercentile(PERCENTILES[i]) / 1000);
+		}
+		json.append(",\"maxMicros\":").append(histogram.getMax() / 1000);
+		if (bytes >= 0) json.append(",\"bytes\":").append(bytes);
+		json.append('}');
+	}
+
+	private static void appendJoined(StringBuilder json, ArrayList<String> entries) {
+		for (int i = 0; i < entries.size(); i++) {
+			if (i > 0) json.append(',');
+			json.append(entries.get(i));
+		}
+	}
+
+	private static String escapeJson(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class StatusStats {
+
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLong bytes = new AtomicLong();
+	}
+}
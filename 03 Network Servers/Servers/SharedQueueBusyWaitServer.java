@@ -1,7 +1,6 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 
 public class SharedQueueBusyWaitServer {
 
@@ -15,10 +14,12 @@ public class SharedQueueBusyWaitServer {
 		ServerSocket serverSocket = shttpServer.getServerSocket();
 		if (serverSocket == null) return;
 
-		// Start all the threads that will share the Sockets queue
-		ArrayList<Socket> connSocketsList = new ArrayList<Socket>();
+		// Start all the threads that will share the Sockets queue .. bounded, so that under overload
+		// connections are rejected (or the acceptor waits) instead of queueing up without limit
+		BoundedSocketQueue connSocketsQueue = new BoundedSocketQueue(shttpServer.getQueueCapacity(), shttpServer);
+		shttpServer.getServerStats().addComponent("connectionQueue", connSocketsQueue);
 		for (int i = 0; i < numThreads; i++) {
-			SharedQueueThread multipleRequestsThread = new SharedQueueThread(shttpServer, connSocketsList);
+			SharedQueueThread multipleRequestsThread = new SharedQueueThread(shttpServer, connSocketsQueue);
 			multipleRequestsThread.start();
 		}
 
@@ -28,9 +29,7 @@ public class SharedQueueBusyWaitServer {
 				Socket connectionSocket = serverSocket.accept();
 				//System.out.println("accepted connection from " + connectionSocket);
 
-				synchronized (connSocketsList) {
-					connSocketsList.add(connectionSocket);
-				}
+				shttpServer.enqueueConnection(connSocketsQueue, connectionSocket);
 
 			} catch (IOException e) {
 				System.err.println("IOException in accepting connection: " + e.getMessage());
@@ -41,28 +40,25 @@ public class SharedQueueBusyWaitServer {
 
 	private static class SharedQueueThread extends Thread {
 
-		private ArrayList<Socket> connSocketsList;
+		private BoundedSocketQueue connSocketsQueue;
 		private SHTTPServer shttpServer;
 
-		public SharedQueueThread(SHTTPServer shttpServer, ArrayList<Socket> connSocketsList) {
+		public SharedQueueThread(SHTTPServer shttpServer, BoundedSocketQueue connSocketsQueue) {
 
 			this.shttpServer = shttpServer;
-			this.connSocketsList = connSocketsList;
+			this.connSocketsQueue = connSocketsQueue;
 		}
 
 		@Override
 		public void run() {
 			while (true) {
 				// accept connection from connection queue
-				Socket connectionSocket;
-				synchronized (connSocketsList) {
-					if (!connSocketsList.isEmpty()) {
-						connectionSocket = connSocketsList.remove(0);
-						//System.out.println("accepted connection from " + connectionSocket);
+				Socket connectionSocket = connSocketsQueue.poll();
+				if (connectionSocket != null) {
+					//System.out.println("accepted connection from " + connectionSocket);
 
-						// Process the request
-						shttpServer.serveRequest(connectionSocket);
-					}
+					// Process the request .. outside the queue lock, so the other threads keep polling
+					shttpServer.serveRequest(connectionSocket);
 				}
 			}
 		}
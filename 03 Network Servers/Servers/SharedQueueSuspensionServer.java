@@ -1,7 +1,6 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 
 public class SharedQueueSuspensionServer {
 
@@ -15,10 +14,12 @@ public class SharedQueueSuspensionServer {
 		ServerSocket serverSocket = shttpServer.getServerSocket();
 		if (serverSocket == null) return;
 
-		// Start all the threads that will share the Sockets queue
-		ArrayList<Socket> connSocketsList = new ArrayList<Socket>();
+		// Start all the threads that will share the Sockets queue .. bounded, so that under overload
+		// connections are rejected (or the acceptor waits) instead of queueing up without limit
+		BoundedSocketQueue connSocketsQueue = new BoundedSocketQueue(shttpServer.getQueueCapacity(), shttpServer);
+		shttpServer.getServerStats().addComponent("connectionQueue", connSocketsQueue);
 		for (int i = 0; i < numThreads; i++) {
-			SharedQueueThread multipleRequestsThread = new SharedQueueThread(shttpServer, connSocketsList);
+			SharedQueueThread multipleRequestsThread = new SharedQueueThread(shttpServer, connSocketsQueue);
 			multipleRequestsThread.start();
 		}
 
@@ -28,10 +29,7 @@ public class SharedQueueSuspensionServer {
 				Socket connectionSocket = serverSocket.accept();
 				//System.out.println("accepted connection from " + connectionSocket);
 
-				synchronized (connSocketsList) {
-					connSocketsList.add(connectionSocket);
-					connSocketsList.notifyAll();
-				}
+				shttpServer.enqueueConnection(connSocketsQueue, connectionSocket);
 
 			} catch (IOException e) {
 				System.err.println("IOException in accepting connection: " + e.getMessage());
@@ -42,32 +40,28 @@ public class SharedQueueSuspensionServer {
 
 	private static class SharedQueueThread extends Thread {
 
-		private ArrayList<Socket> connSocketsList;
+		private BoundedSocketQueue connSocketsQueue;
 		private SHTTPServer shttpServer;
 
-		public SharedQueueThread(SHTTPServer shttpServer, ArrayList<Socket> connSocketsList) {
+		public SharedQueueThread(SHTTPServer shttpServer, BoundedSocketQueue connSocketsQueue) {
 
 			this.shttpServer = shttpServer;
-			this.connSocketsList = connSocketsList;
+			this.connSocketsQueue = connSocketsQueue;
 		}
 
 		@Override
 		public void run() {
 			while (true) {
 				Socket connectionSocket;
-				synchronized (connSocketsList) {         
-					while (connSocketsList.isEmpty()) {
-						try {
-							//System.out.println("Thread " + this + " sees empty pool.");
-							connSocketsList.wait();
-						}
-						catch (InterruptedException ex) {
-							System.err.println("Waiting for pool interrupted.");
-						}
-					}
-					connectionSocket = connSocketsList.remove(0);
+				try {
+					// suspends until the acceptor signals a connection
+					connectionSocket = connSocketsQueue.take();
 					//System.out.println("accepted connection from " + connectionSocket);
 				}
+				catch (InterruptedException ex) {
+					System.err.println("Waiting for pool interrupted.");
+					continue;
+				}
 				// Process the request sequentially
 				shttpServer.serveRequest(connectionSocket);
 			}
@@ -0,0 +1,11 @@
+/*
+ * Told how long each request waited inside the server before it started being served (its
+ * sojourn time): from accept, or from being read in full, to the start of service.
+ * A LoadBalancer plugin that implements it is fed by every server variant that queues work.
+ * Called on the serving threads, so implementations must be thread safe and cheap.
+ */
+
+public interface SojournTimeListener {
+	public void requestStarted(long sojournTime);	// in ns
+	public void requestShed();		// turned away because the queue was full: waited longer than any target
+}
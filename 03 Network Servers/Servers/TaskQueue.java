@@ -0,0 +1,127 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Lock-free multi-producer / single-consumer queue of tasks for a Dispatcher.
+ * Producers push onto a linked stack with a CAS; the consumer takes the whole stack with a
+ * single getAndSet and reverses it, so a batch is drained in the order it was added with one
+ * atomic operation no matter how many tasks it holds.
+ * Also records the depth of the queue and how long tasks waited before they were run.
+ */
+
+public class TaskQueue {
+
+	private AtomicReference<Node> top;
+	private AtomicInteger depth;
+
+	// Statistics
+	private AtomicInteger maxDepth;
+	private AtomicLong drainedTasks;
+	private AtomicLong totalLatency;	// in ns, summed over all drained tasks
+	private volatile long maxLatency;	// in ns; only written by the consumer
+
+	public TaskQueue() {
+		top = new AtomicReference<Node>();
+		depth = new AtomicInteger();
+		maxDepth = new AtomicInteger();
+		drainedTasks = new AtomicLong();
+		totalLatency = new AtomicLong();
+		maxLatency = 0;
+	}
+
+	/* Adds a task; may be called from any thread
+	 * Returns true if the queue was empty, i.e. the consumer may have to be woken up
+	 */
+	public boolean add(Runnable task) {
+
+		// counted before it is visible, so the consumer never takes the depth below 0
+		int newDepth = depth.incrementAndGet();
+		int max;
+		while (newDepth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, newDepth));
+
+		Node node = new Node(task, System.nanoTime());
+		Node current;
+		do {
+			current = top.get();
+			node.next = current;
+		} while (!top.compareAndSet(current, node));
+		return current == null;
+	}
+
+	/* Runs all tasks added so far, oldest first; may only be called by the consumer thread
+	 * Returns the number of tasks run
+	 */
+	public int drain() {
+
+		Node node = top.getAndSet(null);
+		if (node == null) return 0;
+
+		// reverse the stack into the order the tasks were added
+		Node oldest = null;
+		while (node != null) {
+			Node next = node.next;
+			node.next = oldest;
+			oldest = node;
+			node = next;
+		}
+
+		int count = 0;
+		long now = System.nanoTime();
+		long latency = 0;
+		for (node = oldest; node != null; node = node.next) {
+			long waited = now - node.enqueueTime;
+			latency += waited;
+			if (waited > maxLatency) maxLatency = waited;
+			count++;
+		}
+		depth.addAndGet(-count);
+		drainedTasks.addAndGet(count);
+		totalLatency.addAndGet(latency);
+
+		for (node = oldest; node != null; node = node.next) {
+			node.task.run();
+		}
+		return count;
+	}
+
+	public int getDepth() {
+		return depth.get();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getDrainedTasks() {
+		return drainedTasks.get();
+	}
+
+	/* Average time between adding a task and its batch being drained, in ns */
+	public long getAverageLatency() {
+		long tasks = drainedTasks.get();
+		return (tasks == 0) ? 0 : totalLatency.get() / tasks;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "TaskQueue[depth=" + getDepth() + ", maxDepth=" + getMaxDepth() + ", drained=" + getDrainedTasks()
+				+ ", avgLatency=" + getAverageLatency() / 1000 + " us, maxLatency=" + getMaxLatency() / 1000 + " us]";
+	}
+
+	private static class Node {
+
+		private final Runnable task;
+		private final long enqueueTime;		// in ns
+		private Node next;
+
+		private Node(Runnable task, long enqueueTime) {
+			this.task = task;
+			this.enqueueTime = enqueueTime;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Hashed timing wheel for the connection timeouts of one Dispatcher.
+ * Time is cut into ticks of tickMillis; a timeout is kept in the slot of the tick it expires in
+ * (slots are reused every numSlots ticks, so a timeout further away also counts the rounds it has
+ * to wait). Scheduling and cancelling are O(1): a timeout is just linked into or out of the list
+ * of its slot. Expired timeouts run when the owner calls advance(), at most one tick late.
+ * Not thread safe: only the Dispatcher thread that owns the wheel may use it.
+ */
+
+public class TimingWheel {
+
+	private Timeout[] slots;	// head of the list of timeouts in each slot
+	private int slotMask;
+	private long tickMillis;
+	private long startTime;		// in ms
+	private long currentTick;	// next tick to expire
+	private int size;
+
+	/* numSlots is rounded up to a power of two */
+	public TimingWheel(long tickMillis, int numSlots, long now) {
+		int length = 1;
+		while (length < numSlots) length <<= 1;
+		slots = new Timeout[length];
+		slotMask = length - 1;
+		this.tickMillis = tickMillis;
+		startTime = now;
+		currentTick = 1;
+		size = 0;
+	}
+
+	/* Runs task once delayMillis have passed (at most one tick later) unless cancelled first */
+	public Timeout schedule(Runnable task, long delayMillis, long now) {
+
+		long deadlineTick = (now + delayMillis - startTime + tickMillis - 1) / tickMillis;
+		if (deadlineTick < currentTick) deadlineTick = currentTick;
+
+		Timeout timeout = new Timeout(this, task);
+		timeout.slot = (int) (deadlineTick & slotMask);
+		timeout.rounds = (deadlineTick - currentTick) / slots.length;
+		timeout.next = slots[timeout.slot];
+		if (timeout.next != null) timeout.next.prev = timeout;
+		slots[timeout.slot] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/* Runs all timeouts that have expired by now */
+	public void advance(long now) {
+
+		long lastTick = (now - startTime) / tickMillis;
+		if (size == 0) {
+			// nothing to expire; skip the idle ticks
+			if (lastTick >= currentTick) currentTick = lastTick + 1;
+			return;
+		}
+
+		while (currentTick <= lastTick) {
+			// Unlink the expired timeouts of the slot first, so their tasks can't disturb the walk
+			Timeout expired = null;
+			Timeout timeout = slots[(int) (currentTick & slotMask)];
+			currentTick++;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					timeout.cancel();
+					timeout.next = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				expired.task.run();
+				expired = next;
+			}
+		}
+	}
+
+	/* Returns how long the owner may wait before it has to call advance(); -1 if the wheel is empty */
+	public long getMillisToNextTick(long now) {
+		if (size == 0) return -1;
+		return Math.max(1, startTime + currentTick * tickMillis - now);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/* A scheduled task; cancelling it unlinks it from its slot */
+	public static class Timeout {
+
+		private TimingWheel wheel;
+		private Runnable task;
+		private Timeout prev;
+		private Timeout next;
+		private int slot;
+		private long rounds;
+		private boolean cancelled;
+
+		private Timeout(TimingWheel wheel, Runnable task) {
+			this.wheel = wheel;
+			this.task = task;
+		}
+
+		/* Has no effect if the timeout has expired or been cancelled already */
+		public void cancel() {
+			if (cancelled) return;
+			cancelled = true;
+			if (prev != null) prev.next = next;
+			else wheel.slots[slot] = next;
+			if (next != null) next.prev = prev;
+			prev = null;
+			next = null;
+			wheel.size--;
+		}
+	}
+}
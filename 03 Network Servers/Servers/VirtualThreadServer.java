@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Serves every connection on its own virtual thread with the plain blocking serveRequest(Socket),
+ * so concurrency is limited by memory rather than by ThreadPoolSize or the cost of platform threads.
+ * Virtual threads need Java 21 (or 19/20 with --enable-preview); the executor is looked up by
+ * reflection so the server still compiles and runs on older JVMs, where it falls back to a
+ * platform thread per connection (like PerRequestThreadServer).
+ */
+
+public class VirtualThreadServer {
+
+	public static final String serverName = "VirtualThreadServer";
+
+	public static void main(String[] args) {
+
+		// Setup SHTTP server
+		SHTTPServer shttpServer = new SHTTPServer(serverName, args);
+		ServerSocket serverSocket = shttpServer.getServerSocket();
+		if (serverSocket == null) return;
+
+		ExecutorService executor = createVirtualThreadExecutor();
+		if (executor == null) {
+			System.err.println("WARNING: virtual threads not available; serving each connection on a platform thread");
+			executor = Executors.newCachedThreadPool();
+		}
+
+		while (true){
+			try {
+				// accept connection from connection queue
+				Socket connectionSocket = serverSocket.accept();
+				long acceptTime = System.nanoTime();
+
+				// Serve the connection on a thread of its own
+				executor.execute(new ServeConnection(shttpServer, connectionSocket, acceptTime));
+
+			} catch (IOException e) {
+				System.err.println("IOException in accepting connection: " + e.getMessage());
+			}
+		}
+
+	}
+
+	/* Returns Executors.newVirtualThreadPerTaskExecutor(), or null if this JVM has no virtual threads */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static class ServeConnection implements Runnable {
+
+		private Socket connectionSocket;
+		private SHTTPServer shttpServer;
+		private long acceptTime;
+
+		public ServeConnection(SHTTPServer shttpServer, Socket connectionSocket, long acceptTime) {
+
+			this.connectionSocket = connectionSocket;
+			this.shttpServer = shttpServer;
+			this.acceptTime = acceptTime;
+		}
+
+		@Override
+		public void run() {
+
+			shttpServer.serveRequest(connectionSocket, acceptTime);
+		}
+
+	}
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounded pool of worker threads for the blocking part of serving a request in AsyncServer
+ * (disk reads on cache misses, executable checks and CGI runs), so it never stalls a Dispatcher.
+ * At most queueCapacity tasks wait for a worker; once the queue is full submit() refuses the
+ * task and the caller has to shed the request instead.
+ */
+
+public class WorkerPool {
+
+	private ThreadPoolExecutor executor;
+	private int queueCapacity;
+
+	// Statistics
+	private AtomicLong submitted;
+	private AtomicLong rejected;
+	private AtomicInteger maxQueueDepth;
+
+	public WorkerPool(int numThreads, int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		submitted = new AtomicLong();
+		rejected = new AtomicLong();
+		maxQueueDepth = new AtomicInteger();
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Worker-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+	}
+
+	/* Runs the task on a worker; returns false if the queue is full and the task was not accepted */
+	public boolean submit(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		submitted.incrementAndGet();
+
+		int queueDepth = executor.getQueue().size();
+		int max;
+		while (queueDepth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, queueDepth));
+		return true;
+	}
+
+	public int getPoolSize() {
+		return executor.getCorePoolSize();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getCompleted() {
+		return executor.getCompletedTaskCount();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WorkerPool[threads=" + getPoolSize() + ", active=" + getActiveCount()
+				+ ", queue=" + getQueueDepth() + "/" + queueCapacity + ", maxQueue=" + getMaxQueueDepth()
+				+ ", submitted=" + getSubmitted() + ", completed=" + getCompleted() + ", rejected=" + getRejected() + "]";
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Builds a synthetic document root and matching request lists, so benchmark.sh can run without
+ * downloading the gen tree. Everything is drawn from one seeded Random, so the same arguments
+ * always give the same files and the same requests.
+ *  - files: -numFiles files doc1.html .. docN.html under -root, with sizes drawn from -sizes:
+ *      pareto   heavy tail: minSize / U^(1 / alpha), capped at maxSize
+ *      zipf     the file of size rank k has maxSize / k^skew bytes (at least minSize)
+ *      uniform  between minSize and maxSize
+ *  - requests: -numRequests requests, each for a file drawn from -popularity (same names; a
+ *    file's popularity rank is independent of its size rank):
+ *      zipf     the file of popularity rank k is picked with probability ~ 1 / k^skew
+ *      pareto   each file's weight is a Pareto(alpha) variate
+ *      uniform  every file equally likely
+ *    written as URLs relative to the server's DocumentRoot to -out, and with -apachePrefix
+ *    instead of the root to -apacheOut
+ *  - optionally a trace for OpenLoopLoadGenerator -trace: the same requests, each line
+ *    "<inter-arrival time in us>\t<URL>", with arrivals at -rate per second that are either
+ *    poisson (exponential inter-arrival times) or uniform (evenly spaced)
+ *
+ * usage: java WorkloadGenerator [-root <directory>] [-numFiles <#>] [-sizes pareto|zipf|uniform]
+ *            [-minSize <bytes>] [-maxSize <bytes>] [-popularity zipf|pareto|uniform] [-alpha <shape>]
+ *            [-skew <exponent>] [-numRequests <#>] [-out <file>] [-apacheOut <file>] [-apachePrefix <path>]
+ *            [-trace <file>] [-rate <requests per second>] [-arrivals poisson|uniform] [-seed <seed>]
+ */
+
+public class WorkloadGenerator {
+
+	private static final String ROOT_ARG = "-root";
+	private static final String NUM_FILES_ARG = "-numFiles";
+	private static final String SIZES_ARG = "-sizes";
+	private static final String MIN_SIZE_ARG = "-minSize";
+	private static final String MAX_SIZE_ARG = "-maxSize";
+	private static final String POPULARITY_ARG = "-popularity";
+	private static final String ALPHA_ARG = "-alpha";
+	private static final String SKEW_ARG = "-skew";
+	private static final String NUM_REQUESTS_ARG = "-numRequests";
+	private static final String OUT_ARG = "-out";
+	private static final String APACHE_OUT_ARG = "-apacheOut";
+	private static final String APACHE_PREFIX_ARG = "-apachePrefix";
+	private static final String TRACE_ARG = "-trace";
+	private static final String RATE_ARG = "-rate";
+	private static final String ARRIVALS_ARG = "-arrivals";
+	private static final String SEED_ARG = "-seed";
+
+	public static final String DISTRIBUTION_PARETO = "pareto";
+	public static final String DISTRIBUTION_ZIPF = "zipf";
+	public static final String DISTRIBUTION_UNIFORM = "uniform";
+	public static final String ARRIVALS_POISSON = "poisson";
+
+	private static final byte[] FILLER = ("<p>The quick brown fox jumps over the lazy dog; "
+			+ "pack my box with five dozen liquor jugs.</p>\n").getBytes();
+
+	public static void main(String[] args) {
+
+		HashMap<String, String> argsMap = parseArgs(args);
+		String root = getArg(argsMap, ROOT_ARG, "gen/doc-root");
+		int numFiles = Integer.parseInt(getArg(argsMap, NUM_FILES_ARG, "100"));
+		String sizes = getArg(argsMap, SIZES_ARG, DISTRIBUTION_PARETO);
+		long minSize = Long.parseLong(getArg(argsMap, MIN_SIZE_ARG, "1024"));
+		long maxSize = Long.parseLong(getArg(argsMap, MAX_SIZE_ARG, "" + 2 * 1024 * 1024));
+		String popularity = getArg(argsMap, POPULARITY_ARG, DISTRIBUTION_ZIPF);
+		double alpha = Double.parseDouble(getArg(argsMap, ALPHA_ARG, "1.2"));
+		double skew = Double.parseDouble(getArg(argsMap, SKEW_ARG, "1.0"));
+		int numRequests = Integer.parseInt(getArg(argsMap, NUM_REQUESTS_ARG, "1000"));
+		String out = getArg(argsMap, OUT_ARG, "requests");
+		String apacheOut = getArg(argsMap, APACHE_OUT_ARG, "apacheRequests");
+		String apachePrefix = getArg(argsMap, APACHE_PREFIX_ARG, "/classes/cs433/web/www-root/html-big");
+		String trace = argsMap.get(TRACE_ARG);
+		double rate = Double.parseDouble(getArg(argsMap, RATE_ARG, "1000"));
+		String arrivals = getArg(argsMap, ARRIVALS_ARG, ARRIVALS_POISSON);
+		long seed = Long.parseLong(getArg(argsMap, SEED_ARG, "433"));
+
+		if (numFiles <= 0 || numRequests <= 0 || minSize < 0 || maxSize < minSize || rate <= 0) {
+			System.err.println("numFiles, numRequests and rate must be positive and minSize <= maxSize");
+			return;
+		}
+
+		Random random = new Random(seed);
+		long[] fileSizes;
+		double[] cumulativeWeights;
+		try {
+			fileSizes = drawSizes(sizes, numFiles, minSize, maxSize, alpha, skew, random);
+			cumulativeWeights = drawPopularity(popularity, numFiles, alpha, skew, random);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		// URLs are relative to a DocumentRoot of "." (as in server_config)
+		String urlPrefix = "/" + root.replace(File.separatorChar, '/').replaceAll("^(\\./)+", "").replaceAll("/+$", "");
+		try {
+			long totalBytes = writeFiles(new File(root), fileSizes);
+			int[] requests = drawRequests(cumulativeWeights, numRequests, random);
+			writeRequests(out, urlPrefix, requests);
+			writeRequests(apacheOut, apachePrefix, requests);
+			if (trace != null) writeTrace(trace, urlPrefix, requests, rate, arrivals, random);
+
+			System.out.println("Wrote " + numFiles + " files (" + totalBytes + " bytes, " + sizes + " sizes) to " + root);
+			System.out.println("Wrote " + numRequests + " requests (" + popularity + " popularity) to " + out
+					+ " and " + apacheOut + ((trace != null) ? " and, with " + arrivals + " arrivals at " + rate
+					+ " requests per second, to " + trace : ""));
+		} catch (IOException e) {
+			System.err.println("IOException in writing workload: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/* Returns the size in bytes of each file */
+	private static long[] drawSizes(String distribution, int numFiles, long minSize, long maxSize,
+			double alpha, double skew, Random random) {
+
+		long[] fileSizes = new long[numFiles];
+		if (distribution.equals(DISTRIBUTION_PARETO)) {
+			for (int i = 0; i < numFiles; i++) {
+				double u = 1.0 - random.nextDouble();	// in (0, 1]
+				fileSizes[i] = (long) Math.min(maxSize, Math.max(1, minSize) / Math.pow(u, 1.0 / alpha));
+			}
+		} else if (distribution.equals(DISTRIBUTION_ZIPF)) {
+			int[] ranks = shuffledRanks(numFiles, random);
+			for (int i = 0; i < numFiles; i++) {
+				fileSizes[i] = Math.max(minSize, (long) (maxSize / Math.pow(ranks[i], skew)));
+			}
+		} else if (distribution.equals(DISTRIBUTION_UNIFORM)) {
+			for (int i = 0; i < numFiles; i++) {
+				fileSizes[i] = minSize + (long) (random.nextDouble() * (maxSize - minSize + 1));
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown size distribution: " + distribution);
+		}
+		return fileSizes;
+	}
+
+	/* Returns the cumulative probability of picking files 0..i, for each file i */
+	private static double[] drawPopularity(String distribution, int numFiles, double alpha, double skew, Random random) {
+
+		double[] weights = new double[numFiles];
+		if (distribution.equals(DISTRIBUTION_ZIPF)) {
+			int[] ranks = shuffledRanks(numFiles, random);
+			for (int i = 0; i < numFiles; i++) weights[i] = 1.0 / Math.pow(ranks[i], skew);
+		} else if (distribution.equals(DISTRIBUTION_PARETO)) {
+			for (int i = 0; i < numFiles; i++) weights[i] = 1.0 / Math.pow(1.0 - random.nextDouble(), 1.0 / alpha);
+		} else if (distribution.equals(DISTRIBUTION_UNIFORM)) {
+			Arrays.fill(weights, 1.0);
+		} else {
+			throw new IllegalArgumentException("Unknown popularity distribution: " + distribution);
+		}
+
+		double total = 0;
+		for (int i = 0; i < numFiles; i++) total += weights[i];
+		double[] cumulativeWeights = new double[numFiles];
+		double sum = 0;
+		for (int i = 0; i < numFiles; i++) {
+			sum += weights[i];
+			cumulativeWeights[i] = sum / total;
+		}
+		cumulativeWeights[numFiles - 1] = 1.0;	// force 1
+		return cumulativeWeights;
+	}
+
+	/* Returns ranks 1..n in a random order, so that rank and file number are independent */
+	private static int[] shuffledRanks(int n, Random random) {
+		int[] ranks = new int[n];
+		for (int i = 0; i < n; i++) ranks[i] = i + 1;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int rank = ranks[i];
+			ranks[i] = ranks[j];
+			ranks[j] = rank;
+		}
+		return ranks;
+	}
+
+	/* Returns the index of the file of each request */
+	private static int[] drawRequests(double[] cumulativeWeights, int numRequests, Random random) {
+		int[] requests = new int[numRequests];
+		for (int i = 0; i < numRequests; i++) {
+			int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+			requests[i] = (index >= 0) ? index : -index - 1;
+		}
+		return requests;
+	}
+
+	/* Writes doc1.html .. docN.html of the given sizes; returns the total # of bytes */
+	private static long writeFiles(File root, long[] fileSizes) throws IOException {
+
+		if (!root.isDirectory() && !root.mkdirs()) throw new IOException("Cannot create directory " + root);
+		long totalBytes = 0;
+		for (int i = 0; i < fileSizes.length; i++) {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(root, getFileName(i))));
+			try {
+				long remaining = fileSizes[i];
+				while (remaining > 0) {
+					int length = (int) Math.min(remaining, FILLER.length);
+					out.write(FILLER, 0, length);
+					remaining -= length;
+				}
+			} finally {
+				out.close();
+			}
+			totalBytes += fileSizes[i];
+		}
+		return totalBytes;
+	}
+
+	private static void writeRequests(String fileName, String prefix, int[] requests) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+		for (int i = 0; i < requests.length; i++) {
+			out.print(prefix + "/" + getFileName(requests[i]) + "\n");
+		}
+		out.close();
+		if (out.checkError()) throw new IOException("Error in writing " + fileName);
+	}
+
+	private static void writeTrace(String fileName, String prefix, int[] requests, double rate, String arrivals,
+			Random random) throws IOException {
+
+		boolean poisson = arrivals.equals(ARRIVALS_POISSON);
+		if (!poisson && !arrivals.equals(DISTRIBUTION_UNIFORM))
+			throw new IllegalArgumentException("Unknown arrival process: " + arrivals);
+
+		double meanInterArrival = 1e6 / rate;	// in us
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+		for (int i = 0; i < requests.length; i++) {
+			double interArrival = poisson ? -Math.log(1.0 - random.nextDouble()) * meanInterArrival : meanInterArrival;
+			out.print(((i == 0) ? 0 : Math.round(interArrival)) + "\t" + prefix + "/" + getFileName(requests[i]) + "\n");
+		}
+		out.close();
+		if (out.checkError()) throw new IOException("Error in writing " + fileName);
+	}
+
+	private static String getFileName(int index) {
+		return "doc" + (index + 1) + ".html";
+	}
+
+	private static String getArg(HashMap<String, String> argsMap, String name, String defaultValue) {
+		String value = argsMap.get(name);
+		return (value != null) ? value : defaultValue;
+	}
+
+	/* Takes in args from terminal and returns a HashMap of < arg name , arg value >
+	 */
+	private static HashMap<String, String> parseArgs(String[] args) {
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			argsMap.put(args[i], args[i+1]);
+		}
+		return argsMap;
+	}
+}
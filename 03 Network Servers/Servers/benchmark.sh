@@ -3,6 +3,20 @@
 # Start by compiling all .java files in the current directory
 javac *.java
 
+# Request lists for SHTTPTestClient
+req_files="requests"
+apache_req_files="apacheRequests"
+
+# Without the downloaded gen tree, generate a synthetic one (and requests for it) with a fixed seed
+# The lists go under gen/ so that the tracked ones are left alone; Apache does not serve the synthetic files
+if [ ! -d gen/doc-root ]
+then
+    echo "gen/doc-root not found; generating a synthetic document root"
+    java WorkloadGenerator -root gen/doc-root -out gen/requests -apacheOut gen/apacheRequests -seed 433
+    req_files="gen/requests"
+    apache_req_files=""
+fi
+
 # Define six different ports for all the servers
 seq_port=4321
 comp_thread_port=4322
@@ -10,6 +24,7 @@ request_thread_port=4323
 busy_wait_port=4324
 suspension_port=4325
 async_port=4326
+virtual_thread_port=4327
 ports_array=($seq_port $comp_thread_port $request_thread_port $busy_wait_port $suspension_port $async_port)
 
 # Start all the servers in the background
@@ -19,9 +34,9 @@ java PerRequestThreadServer -config server_config Listen $request_thread_port >&
 java SharedQueueBusyWaitServer -config server_config Listen $busy_wait_port >& /dev/null &
 java SharedQueueSuspensionServer -config server_config Listen $suspension_port >& /dev/null &
 java AsyncServer -config server_config Listen $async_port >& /dev/null &
+java VirtualThreadServer -config server_config Listen $virtual_thread_port >& /dev/null &
 
 # Configuration parameters for SHTTPTestClient
-req_files="requests"
 # Test time provided in param 1; default test time = 10 s
 if [ -n "$1" ]
 then
@@ -106,11 +121,44 @@ do
 done
 
 # Execute client requests for the Apache server and write output to output file
-echo "Started writing to ${outputs_array[6]}..."
-for j in ${threads[@]}
+if [ -n "$apache_req_files" ]
+then
+    echo "Started writing to ${outputs_array[6]}..."
+    for j in ${threads[@]}
+    do
+        echo "Executing: java SHTTPTestClient -server zoo.cs.yale.edu -port 80 -parallel $j -files $apache_req_files -T $test_time"
+        java SHTTPTestClient -server zoo.cs.yale.edu -port 80 -parallel $j -files $apache_req_files -T $test_time >> ${outputs_array[6]}
+    done
+else
+    echo "Skipping the Apache server: it does not serve the synthetic document root"
+fi
+printf "%s\n" ""
+
+# Compare the virtual thread per connection server with AsyncServer at low, medium and very high concurrency
+compare_output="output/VirtualThreadVsAsync.txt"
+compare_threads=(5 50 5000)
+cat /dev/null > $compare_output
+for port in $async_port $virtual_thread_port
+do
+    echo "Started writing port $port to $compare_output..."
+    for j in ${compare_threads[@]}
+    do
+        echo "Executing: java SHTTPTestClient -server $localhostname -port $port -parallel $j -files $req_files -T $test_time"
+        printf "%s\n" "Port $port with $j client threads:" >> $compare_output
+        java SHTTPTestClient -server $localhostname -port $port -parallel $j -files $req_files -T $test_time >> $compare_output
+    done
+done
+printf "%s\n" ""
+
+# Load AsyncServer open-loop at fixed request rates; latencies include time waiting behind a slow server
+open_loop_output="output/OpenLoopAsync.txt"
+open_loop_rates=(500 2000 8000)
+cat /dev/null > $open_loop_output
+echo "Started writing to $open_loop_output..."
+for rate in ${open_loop_rates[@]}
 do
-    echo "Executing: java SHTTPTestClient -server zoo.cs.yale.edu -port 80 -parallel $j -files apacheRequests -T $test_time"
-    java SHTTPTestClient -server zoo.cs.yale.edu -port 80 -parallel $j -files apacheRequests -T $test_time >> ${outputs_array[6]}
+    echo "Executing: java OpenLoopLoadGenerator -server $localhostname -port $async_port -files $req_files -T $test_time -rate $rate"
+    java OpenLoopLoadGenerator -server $localhostname -port $async_port -files $req_files -T $test_time -rate $rate >> $open_loop_output
 done
 printf "%s\n" ""
 